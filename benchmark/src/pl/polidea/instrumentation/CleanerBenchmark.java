@@ -0,0 +1,38 @@
+package pl.polidea.instrumentation;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of cleaning up fields of a finished test case, with the cleanup plan of
+ * its class already cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CleanerBenchmark {
+
+    private final TestCaseCleaner cleaner = new TestCaseCleaner();
+    private TestCase[] testCases;
+    private int next;
+
+    @Setup
+    public void createTests() {
+        testCases = ReportFixture.createTests(1000);
+    }
+
+    @Benchmark
+    public long cleanup() {
+        next = (next + 1) % testCases.length;
+        return cleaner.cleanup(testCases[next]);
+    }
+}
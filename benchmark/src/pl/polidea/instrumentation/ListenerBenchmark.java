@@ -0,0 +1,67 @@
+package pl.polidea.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of recording results in the listener: resolving the entry of each
+ * test, cleanup of the test case, time and failure bookkeeping. One operation
+ * records the whole run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ListenerBenchmark {
+
+    @Param({ "1000", "20000", "100000" })
+    public int tests;
+
+    @Param({ "0", "5", "100" })
+    public int failurePercent;
+
+    private File directory;
+    private TestCase[] testCases;
+    private AssertionFailedError failure;
+    private ReportFixture fixture;
+
+    @Setup(Level.Trial)
+    public void createTests() throws IOException {
+        directory = File.createTempFile("listener", "");
+        directory.delete();
+        directory.mkdirs();
+        testCases = ReportFixture.createTests(tests);
+        failure = ReportFixture.createFailure("expected:<1> but was:<2>");
+    }
+
+    @Setup(Level.Invocation)
+    public void createRunner() {
+        fixture = new ReportFixture(directory, "package");
+    }
+
+    @Benchmark
+    public ReportFixture record(final PeakHeap peakHeap) {
+        fixture.record(testCases, failurePercent, failure);
+        return fixture;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        ReportFixture.deleteFiles(directory);
+        directory.delete();
+    }
+}
@@ -0,0 +1,42 @@
+package pl.polidea.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reports the peak heap usage of each iteration, which the gc profiler does
+ * not show. The peak is the sum of peaks of the heap memory pools, so it is an
+ * upper bound.
+ */
+@State(Scope.Benchmark)
+public class PeakHeap {
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println("peak heap: " + peak / BYTES_PER_MB + " MB");
+    }
+}
@@ -0,0 +1,158 @@
+package pl.polidea.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Bundle;
+
+/**
+ * Runner set up the way the instrumentation does it, with synthetic results
+ * fed to its listener. Lives in the runner's package, so benchmarks can reach
+ * the protected and package-private parts.
+ */
+public class ReportFixture {
+
+    private static final int FAILURE_FRAMES = 40;
+
+    private final PolideaInstrumentationTestRunner runner;
+    private final TestListener listener;
+
+    /**
+     * @param outputDirectory
+     *            directory the reports are written to
+     * @param splitLevel
+     *            junitSplitLevel argument
+     */
+    public ReportFixture(final File outputDirectory, final String splitLevel) {
+        final Context context = new BenchmarkContext(outputDirectory);
+        runner = new PolideaInstrumentationTestRunner() {
+            @Override
+            public Context getContext() {
+                return context;
+            }
+
+            @Override
+            public Context getTargetContext() {
+                return context;
+            }
+        };
+        final Bundle arguments = new Bundle();
+        arguments.putString("junitOutputDirectory", outputDirectory.getAbsolutePath());
+        arguments.putString("junitSplitLevel", splitLevel);
+        arguments.putString("junitPacing", TestPacer.PACING_OFF);
+        runner.onCreate(arguments);
+        listener = runner.getAndroidTestRunner().getTestListeners().get(0);
+    }
+
+    /**
+     * Creates the tests, spread evenly over the synthetic test case classes of
+     * two packages.
+     */
+    public static TestCase[] createTests(final int count) {
+        final Class< ? >[] classes = new Class< ? >[pl.polidea.instrumentation.bench.alpha.SyntheticTests.CLASSES.length
+                + pl.polidea.instrumentation.bench.beta.SyntheticTests.CLASSES.length];
+        System.arraycopy(pl.polidea.instrumentation.bench.alpha.SyntheticTests.CLASSES, 0, classes, 0,
+                pl.polidea.instrumentation.bench.alpha.SyntheticTests.CLASSES.length);
+        System.arraycopy(pl.polidea.instrumentation.bench.beta.SyntheticTests.CLASSES, 0, classes,
+                pl.polidea.instrumentation.bench.alpha.SyntheticTests.CLASSES.length,
+                pl.polidea.instrumentation.bench.beta.SyntheticTests.CLASSES.length);
+        final TestCase[] tests = new TestCase[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                // consecutive tests belong to the same class, as in a real run
+                final TestCase test = (TestCase) classes[(int) ((long) i * classes.length / count)].newInstance();
+                test.setName("testNumber" + i);
+                tests[i] = test;
+            }
+        } catch (final InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return tests;
+    }
+
+    /**
+     * Creates a failure with a stack trace as deep as a typical one on the
+     * device.
+     */
+    public static AssertionFailedError createFailure(final String message) {
+        final AssertionFailedError failure = new AssertionFailedError(message);
+        final StackTraceElement[] trace = new StackTraceElement[FAILURE_FRAMES];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = new StackTraceElement("pl.polidea.example.Frame" + i, "method" + i, "Frame" + i + ".java",
+                    i + 1);
+        }
+        failure.setStackTrace(trace);
+        return failure;
+    }
+
+    /**
+     * Feeds the tests to the listener, every n-th of them failing.
+     *
+     * @param failurePercent
+     *            percentage of failing tests
+     */
+    public void record(final TestCase[] tests, final int failurePercent, final AssertionFailedError failure) {
+        for (int i = 0; i < tests.length; i++) {
+            final TestCase test = tests[i];
+            listener.startTest(test);
+            if (i * failurePercent / 100 != (i + 1) * failurePercent / 100) {
+                listener.addFailure(test, failure);
+            }
+            listener.endTest(test);
+        }
+    }
+
+    /**
+     * Writes the reports, as at the end of the run.
+     */
+    public void finish() {
+        runner.finish(0, new Bundle());
+    }
+
+    public static void deleteFiles(final File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                if (!f.delete()) {
+                    throw new IOException("Cannot delete " + f);
+                }
+            }
+        }
+    }
+
+    private static class BenchmarkContext extends Context {
+        private final Resources resources = new Resources();
+        private final File directory;
+
+        BenchmarkContext(final File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public Resources getResources() {
+            return resources;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return directory;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return directory;
+        }
+
+        @Override
+        public String getPackageName() {
+            return "pl.polidea.instrumentation.bench";
+        }
+    }
+}
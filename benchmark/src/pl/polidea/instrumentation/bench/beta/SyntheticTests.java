@@ -0,0 +1,38 @@
+package pl.polidea.instrumentation.bench.beta;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case classes the synthetic results are attributed to. They are never
+ * run; only their classes and names are used.
+ */
+public final class SyntheticTests {
+
+    private SyntheticTests() {
+    }
+
+    public static final Class<?>[] CLASSES = { FirstTest.class, SecondTest.class, ThirdTest.class, FourthTest.class,
+            FifthTest.class };
+
+    public static class FirstTest extends TestCase {
+        private Object fixture = new Object();
+        private String text = "fixture";
+    }
+
+    public static class SecondTest extends TestCase {
+        private Object fixture = new Object();
+    }
+
+    public static class ThirdTest extends TestCase {
+        private int[] data = new int[16];
+    }
+
+    public static class FourthTest extends TestCase {
+        private Object first = new Object();
+        private Object second = new Object();
+        private Object third = new Object();
+    }
+
+    public static class FifthTest extends TestCase {
+    }
+}
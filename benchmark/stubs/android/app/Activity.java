@@ -0,0 +1,10 @@
+package android.app;
+
+/**
+ * Benchmark stub of the Android class, only the result codes.
+ */
+public class Activity {
+
+    public static final int RESULT_CANCELED = 0;
+    public static final int RESULT_OK = -1;
+}
@@ -0,0 +1,35 @@
+package android.app;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Benchmark stub of the Android class. Contexts are provided by subclasses.
+ */
+public class Instrumentation {
+
+    public static final String REPORT_KEY_STREAMRESULT = "stream";
+
+    public void onCreate(final Bundle arguments) {
+    }
+
+    public void start() {
+    }
+
+    public void onStart() {
+    }
+
+    public void finish(final int resultCode, final Bundle results) {
+    }
+
+    public void sendStatus(final int resultCode, final Bundle results) {
+    }
+
+    public Context getContext() {
+        return null;
+    }
+
+    public Context getTargetContext() {
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+package android.content;
+
+import java.io.File;
+
+import android.content.res.Resources;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public abstract class Context {
+
+    public abstract Resources getResources();
+
+    public abstract File getFilesDir();
+
+    public abstract File getCacheDir();
+
+    public abstract String getPackageName();
+}
@@ -0,0 +1,28 @@
+package android.content.res;
+
+import java.util.Locale;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class Configuration {
+
+    public static final int SCREENLAYOUT_SIZE_MASK = 0x0f;
+    public static final int SCREENLAYOUT_SIZE_SMALL = 0x01;
+    public static final int SCREENLAYOUT_SIZE_NORMAL = 0x02;
+    public static final int SCREENLAYOUT_SIZE_LARGE = 0x03;
+    public static final int SCREENLAYOUT_SIZE_XLARGE = 0x04;
+    public static final int SCREENLAYOUT_LONG_MASK = 0x30;
+    public static final int SCREENLAYOUT_LONG_NO = 0x10;
+    public static final int SCREENLAYOUT_LONG_YES = 0x20;
+    public static final int ORIENTATION_PORTRAIT = 1;
+    public static final int ORIENTATION_LANDSCAPE = 2;
+
+    public float fontScale = 1.0f;
+    public Locale locale = Locale.US;
+    public int orientation = ORIENTATION_PORTRAIT;
+    public int screenLayout = SCREENLAYOUT_SIZE_NORMAL | SCREENLAYOUT_LONG_NO;
+    public int screenWidthDp = 360;
+    public int screenHeightDp = 640;
+    public int smallestScreenWidthDp = 360;
+}
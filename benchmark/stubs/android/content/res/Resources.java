@@ -0,0 +1,20 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class Resources {
+
+    private final Configuration configuration = new Configuration();
+    private final DisplayMetrics displayMetrics = new DisplayMetrics();
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public DisplayMetrics getDisplayMetrics() {
+        return displayMetrics;
+    }
+}
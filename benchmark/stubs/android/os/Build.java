@@ -0,0 +1,33 @@
+package android.os;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class Build {
+
+    public static final String BOARD = "benchmark";
+    public static final String BOOTLOADER = "benchmark";
+    public static final String BRAND = "benchmark";
+    public static final String CPU_ABI = System.getProperty("os.arch");
+    public static final String CPU_ABI2 = "unknown";
+    public static final String DEVICE = "benchmark";
+    public static final String DISPLAY = "benchmark";
+    public static final String FINGERPRINT = "benchmark";
+    public static final String HARDWARE = "jvm";
+    public static final String HOST = "localhost";
+    public static final String ID = "benchmark";
+    public static final String MANUFACTURER = "benchmark";
+    public static final String MODEL = "jvm";
+    public static final String PRODUCT = "benchmark";
+    public static final String SERIAL = "unknown";
+    public static final String TAGS = "benchmark";
+    public static final String TYPE = "benchmark";
+    public static final String USER = "benchmark";
+
+    public static class VERSION {
+        public static final String CODENAME = "REL";
+        public static final String INCREMENTAL = "0";
+        public static final String RELEASE = "4.1";
+        public static final int SDK_INT = 16;
+    }
+}
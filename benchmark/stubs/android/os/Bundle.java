@@ -0,0 +1,46 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Benchmark stub of the Android class, backed by a map.
+ */
+public class Bundle {
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    public Set<String> keySet() {
+        return values.keySet();
+    }
+
+    public boolean containsKey(final String key) {
+        return values.containsKey(key);
+    }
+
+    public Object get(final String key) {
+        return values.get(key);
+    }
+
+    public String getString(final String key) {
+        final Object value = values.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    public void putString(final String key, final String value) {
+        values.put(key, value);
+    }
+
+    public void putInt(final String key, final int value) {
+        values.put(key, value);
+    }
+
+    public void putLong(final String key, final long value) {
+        values.put(key, value);
+    }
+
+    public void putBoolean(final String key, final boolean value) {
+        values.put(key, value);
+    }
+}
@@ -0,0 +1,39 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Benchmark stub of the Android class. Thread CPU time is real, allocation
+ * counters are not available on the JVM.
+ */
+public class Debug {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static long threadCpuTimeNanos() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    public static void startAllocCounting() {
+    }
+
+    public static void stopAllocCounting() {
+    }
+
+    public static int getThreadAllocCount() {
+        return 0;
+    }
+
+    public static int getThreadAllocSize() {
+        return 0;
+    }
+
+    public static int getGlobalGcInvocationCount() {
+        return 0;
+    }
+
+    public static long getNativeHeapAllocatedSize() {
+        return 0;
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class Process {
+
+    public static int myPid() {
+        return 1;
+    }
+
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+}
@@ -0,0 +1,20 @@
+package android.test;
+
+import junit.framework.TestCase;
+import android.content.Context;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class AndroidTestCase extends TestCase {
+
+    private Context context;
+
+    public void setContext(final Context context) {
+        this.context = context;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+}
@@ -0,0 +1,38 @@
+package android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+
+/**
+ * Benchmark stub of the Android class. It only keeps the listeners and the
+ * test; benchmarks drive the listeners directly.
+ */
+public class AndroidTestRunner {
+
+    private final List<TestListener> listeners = new ArrayList<TestListener>();
+    private Test test;
+
+    public void addTestListener(final TestListener listener) {
+        listeners.add(listener);
+    }
+
+    public List<TestListener> getTestListeners() {
+        return listeners;
+    }
+
+    public void setTest(final Test test) {
+        this.test = test;
+    }
+
+    public Test getTest() {
+        return test;
+    }
+
+    protected TestResult createTestResult() {
+        return new TestResult();
+    }
+}
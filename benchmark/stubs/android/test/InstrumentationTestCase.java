@@ -0,0 +1,20 @@
+package android.test;
+
+import junit.framework.TestCase;
+import android.app.Instrumentation;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class InstrumentationTestCase extends TestCase {
+
+    private Instrumentation instrumentation;
+
+    public void injectInstrumentation(final Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+}
@@ -0,0 +1,16 @@
+package android.test;
+
+import android.app.Instrumentation;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class InstrumentationTestRunner extends Instrumentation {
+
+    public static final String REPORT_KEY_NAME_CLASS = "class";
+    public static final String REPORT_KEY_NAME_TEST = "test";
+
+    protected AndroidTestRunner getAndroidTestRunner() {
+        return new AndroidTestRunner();
+    }
+}
@@ -0,0 +1,22 @@
+package android.util;
+
+/**
+ * Benchmark stub of the Android class.
+ */
+public class DisplayMetrics {
+
+    public static final int DENSITY_LOW = 120;
+    public static final int DENSITY_MEDIUM = 160;
+    public static final int DENSITY_TV = 213;
+    public static final int DENSITY_HIGH = 240;
+    public static final int DENSITY_XHIGH = 320;
+    public static final int DENSITY_XXHIGH = 480;
+
+    public float density = 2.0f;
+    public int densityDpi = DENSITY_XHIGH;
+    public int heightPixels = 1280;
+    public int widthPixels = 720;
+    public float scaledDensity = 2.0f;
+    public float xdpi = 320.0f;
+    public float ydpi = 320.0f;
+}
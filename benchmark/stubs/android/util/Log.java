@@ -0,0 +1,27 @@
+package android.util;
+
+/**
+ * Benchmark stub of the Android class. Logging is discarded.
+ */
+public class Log {
+
+    public static int d(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+}
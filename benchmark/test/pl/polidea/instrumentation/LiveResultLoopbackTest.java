@@ -0,0 +1,205 @@
+package pl.polidea.instrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+import pl.polidea.instrumentation.host.LiveResultReceiver;
+
+/**
+ * Connects {@link LiveResultPublisher} in socket mode with the host side
+ * {@link LiveResultReceiver} over a loopback socket, standing in for "adb
+ * forward".
+ */
+public class LiveResultLoopbackTest extends TestCase {
+
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final long CLOSE_WITHOUT_HOST_LIMIT = 3000;
+
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception {
+        output = File.createTempFile("live", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        output.delete();
+    }
+
+    public void testRecordsPublishedBeforeConnectionReachReceiver() throws Exception {
+        final int port = findFreePort();
+        final LiveResultPublisher publisher = new LiveResultPublisher(null, LiveResultPublisher.LIVE_SOCKET, port);
+        publisher.start();
+        publisher.runStarted(3);
+        publisher.testStarted(Sample.class.getName(), "testPass");
+        publisher.testFinished(testInfo("testPass", null, null, 1500000));
+        publisher.testStarted(Sample.class.getName(), "testError");
+        publisher.testFinished(testInfo("testError", new IllegalStateException("tab\there\nnew line \\ slash"),
+                null, 2000000));
+        publisher.testStarted(Sample.class.getName(), "testFailure");
+        publisher.testFinished(testInfo("testFailure", null, new AssertionFailedError("expected <1>"), 3000000));
+        receive(publisher, port);
+
+        final Element suite = (Element) parse(output).getElementsByTagName("testsuite").item(0);
+        assertEquals(Sample.class.getName(), suite.getAttribute("name"));
+        assertEquals("3", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("errors"));
+        assertEquals("1", suite.getAttribute("failures"));
+        assertEquals("0.006500", suite.getAttribute("time"));
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals(3, testCases.getLength());
+        assertEquals("testPass", ((Element) testCases.item(0)).getAttribute("name"));
+        assertEquals("0.001500", ((Element) testCases.item(0)).getAttribute("time"));
+        final String trace = ((Element) testCases.item(1)).getElementsByTagName("error").item(0).getTextContent();
+        assertTrue(trace, trace.startsWith("java.lang.IllegalStateException: tab\there\nnew line \\ slash\n"));
+        final String failure = ((Element) testCases.item(2)).getElementsByTagName("failure").item(0)
+                .getTextContent();
+        assertTrue(failure, failure.contains("expected <1>"));
+    }
+
+    public void testRetriedTestReplacesPreviousResult() throws Exception {
+        final int port = findFreePort();
+        final LiveResultPublisher publisher = new LiveResultPublisher(null, LiveResultPublisher.LIVE_SOCKET, port);
+        publisher.start();
+        publisher.runStarted(2);
+        publisher.testStarted(Sample.class.getName(), "testFlaky");
+        publisher.testFinished(testInfo("testFlaky", null, new AssertionFailedError("first"), 1000000));
+        publisher.testStarted(Sample.class.getName(), "testPass");
+        publisher.testFinished(testInfo("testPass", null, null, 2000000));
+        publisher.testStarted(Sample.class.getName(), "testFlaky");
+        publisher.testFinished(testInfo("testFlaky", new IllegalStateException("second"), null, 4000000));
+        publisher.testStarted(Sample.class.getName(), "testFlaky");
+        publisher.testFinished(testInfo("testFlaky", null, null, 8000000));
+        receive(publisher, port);
+
+        final Element suite = (Element) parse(output).getElementsByTagName("testsuite").item(0);
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("0", suite.getAttribute("errors"));
+        assertEquals("0", suite.getAttribute("failures"));
+        assertEquals("0.010000", suite.getAttribute("time"));
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals(2, testCases.getLength());
+        assertEquals("testFlaky", ((Element) testCases.item(0)).getAttribute("name"));
+        assertEquals("0.008000", ((Element) testCases.item(0)).getAttribute("time"));
+        assertEquals(0, ((Element) testCases.item(0)).getChildNodes().getLength());
+    }
+
+    public void testOldestRecordsAreDroppedWhileHostIsAway() throws Exception {
+        final int port = findFreePort();
+        final LiveResultPublisher publisher = new LiveResultPublisher(null, LiveResultPublisher.LIVE_SOCKET, port);
+        publisher.start();
+        final int tests = LiveResultPublisher.MAX_QUEUED_RECORDS;
+        publisher.runStarted(tests);
+        for (int i = 0; i < tests; i++) {
+            publisher.testStarted(Sample.class.getName(), "test" + i);
+            publisher.testFinished(testInfo("test" + i, null, null, 1000000));
+        }
+        receive(publisher, port);
+
+        // the queue keeps the last half of the tests and DONE; one more record
+        // is dropped if the sender takes one while DONE is being queued
+        final Element suite = (Element) parse(output).getElementsByTagName("testsuite").item(0);
+        final int received = Integer.parseInt(suite.getAttribute("tests"));
+        assertTrue("received " + received, received == tests / 2 || received == tests / 2 - 1);
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        final Element last = (Element) testCases.item(testCases.getLength() - 1);
+        assertEquals("test" + (tests - 1), last.getAttribute("name"));
+    }
+
+    public void testCloseDoesNotWaitWithoutHost() throws Exception {
+        final LiveResultPublisher publisher = new LiveResultPublisher(null, LiveResultPublisher.LIVE_SOCKET,
+                findFreePort());
+        publisher.start();
+        publisher.runStarted(0);
+        final long start = System.currentTimeMillis();
+        publisher.close();
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("close() took " + elapsed + " ms", elapsed < CLOSE_WITHOUT_HOST_LIMIT);
+    }
+
+    /**
+     * Receives everything the publisher publishes until it is closed and
+     * writes it to the output file.
+     */
+    private void receive(final LiveResultPublisher publisher, final int port) throws Exception {
+        final LiveResultReceiver receiver = new LiveResultReceiver(false);
+        final Socket socket = connect(port);
+        try {
+            final Thread closer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    publisher.close();
+                }
+            });
+            closer.start();
+            receiver.receive(new InputStreamReader(socket.getInputStream(), "UTF-8"), false);
+            closer.join();
+        } finally {
+            socket.close();
+        }
+        receiver.writeXml(output);
+    }
+
+    private static TestInfo testInfo(final String name, final Throwable error, final AssertionFailedError failure,
+            final long timeNanos) {
+        final TestInfo testInfo = new TestInfo();
+        testInfo.testCase = Sample.class;
+        testInfo.name = name;
+        testInfo.error = error;
+        testInfo.failure = failure;
+        testInfo.timeNanos = timeNanos;
+        return testInfo;
+    }
+
+    private static int findFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connects once the publisher listens, the way the receiver does.
+     */
+    private static Socket connect(final int port) throws Exception {
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (final ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static Document parse(final File file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    /**
+     * Test case class the results are reported for.
+     */
+    public abstract static class Sample extends TestCase {
+    }
+}
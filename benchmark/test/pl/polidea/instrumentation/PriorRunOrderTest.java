@@ -0,0 +1,110 @@
+package pl.polidea.instrumentation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+
+/**
+ * Orders tests by results saved by a previous {@link PriorRunOrder}.
+ */
+public class PriorRunOrderTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("order", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testTestsOfAClassStayTogether() {
+        final PriorRunOrder previous = PriorRunOrder.load(file);
+        record(previous, First.class, "testSlow", false, 500);
+        record(previous, First.class, "testFast", false, 10);
+        record(previous, Second.class, "testPassed", false, 100);
+        record(previous, Second.class, "testFailed", true, 20);
+        record(previous, Third.class, "testOld", false, 50);
+        previous.save();
+
+        final TestSuite suite = new TestSuite();
+        suite.addTest(new First("testFast"));
+        suite.addTest(new First("testSlow"));
+        suite.addTest(new Second("testPassed"));
+        suite.addTest(new Second("testFailed"));
+        suite.addTest(new Third("testOld"));
+        suite.addTest(new Third("testNew"));
+        // the class with a failure first, then the one with a new test, then
+        // the rest, each class in one piece
+        assertEquals("[Second#testFailed, Second#testPassed, Third#testNew, Third#testOld, First#testSlow,"
+                + " First#testFast]", names(PriorRunOrder.load(file).order(suite)));
+    }
+
+    public void testClassesWithFailuresRunFastestFirst() {
+        final PriorRunOrder previous = PriorRunOrder.load(file);
+        record(previous, First.class, "testFailed", true, 10);
+        record(previous, First.class, "testSlow", false, 500);
+        record(previous, Second.class, "testFailed", true, 100);
+        previous.save();
+
+        final TestSuite suite = new TestSuite();
+        suite.addTest(new First("testSlow"));
+        suite.addTest(new First("testFailed"));
+        suite.addTest(new Second("testFailed"));
+        assertEquals("[Second#testFailed, First#testFailed, First#testSlow]",
+                names(PriorRunOrder.load(file).order(suite)));
+    }
+
+    private static void record(final PriorRunOrder order, final Class< ? extends TestCase> clazz,
+            final String name, final boolean failed, final long time) {
+        final TestInfo testInfo = new TestInfo();
+        testInfo.testCase = clazz;
+        testInfo.name = name;
+        testInfo.time = time;
+        if (failed) {
+            testInfo.error = new IllegalStateException();
+        }
+        order.record(testInfo);
+    }
+
+    private static String names(final Test test) {
+        final List<Test> tests = new ArrayList<Test>();
+        TestSharder.collectTests(test, tests);
+        final List<String> names = new ArrayList<String>();
+        for (final Test t : tests) {
+            names.add(t.getClass().getSimpleName() + "#" + ((TestCase) t).getName());
+        }
+        return names.toString();
+    }
+
+    /**
+     * Test case classes that are ordered, never run.
+     */
+    public static class First extends TestCase {
+        public First(final String name) {
+            super(name);
+        }
+    }
+
+    public static class Second extends TestCase {
+        public Second(final String name) {
+            super(name);
+        }
+    }
+
+    public static class Third extends TestCase {
+        public Third(final String name) {
+            super(name);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package pl.polidea.instrumentation;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Bundle;
+import android.test.AndroidTestRunner;
+
+/**
+ * Runs a class with a passing and a retried test, and another class after it,
+ * through the runner with streamed output, and reads the reports back.
+ */
+public class StreamingRetryTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("streaming", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRetriedTestIsWrittenWithItsClassSplitByClass() throws Exception {
+        run("class", "none");
+        assertSuites(readSuites());
+    }
+
+    public void testRetriedTestIsWrittenWithItsClassInZip() throws Exception {
+        run("class", "zip");
+        assertSuites(readSuites());
+    }
+
+    public void testRetriedTestIsWrittenWithItsClassSplitByPackage() throws Exception {
+        run("package", "none");
+        assertSuites(readSuites());
+    }
+
+    private static void assertSuites(final List<Element> suites) {
+        final List<String> names = new ArrayList<String>();
+        for (final Element suite : suites) {
+            names.add(suite.getAttribute("name"));
+        }
+        // a single suite of each class
+        assertEquals(names.toString(), 2, suites.size());
+        assertTrue(names.toString(), names.contains(Other.class.getName()));
+        final Element suite = suites.get(names.indexOf(Retried.class.getName()));
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("0", suite.getAttribute("failures"));
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals(2, testCases.getLength());
+        assertEquals("testPass", ((Element) testCases.item(0)).getAttribute("name"));
+        final Element retried = (Element) testCases.item(1);
+        assertEquals("testFailOnce", retried.getAttribute("name"));
+        assertEquals(1, retried.getElementsByTagName("flakyFailure").getLength());
+    }
+
+    private void run(final String splitLevel, final String compression) {
+        final Context context = new TestContext(directory);
+        final PolideaInstrumentationTestRunner runner = new PolideaInstrumentationTestRunner() {
+            @Override
+            public Context getContext() {
+                return context;
+            }
+
+            @Override
+            public Context getTargetContext() {
+                return context;
+            }
+        };
+        final Bundle arguments = new Bundle();
+        arguments.putString("junitOutputDirectory", directory.getAbsolutePath());
+        arguments.putString("junitPacing", TestPacer.PACING_OFF);
+        arguments.putString("junitStreamOutput", "true");
+        arguments.putString("junitSplitLevel", splitLevel);
+        arguments.putString("junitCompression", compression);
+        arguments.putString("junitRetries", "1");
+        runner.onCreate(arguments);
+        final AndroidTestRunner testRunner = runner.getAndroidTestRunner();
+        final TestSuite suite = new TestSuite();
+        suite.addTest(new Retried("testPass"));
+        suite.addTest(new Retried("testFailOnce"));
+        suite.addTest(new Other("testOther"));
+        Retried.failures = 1;
+        testRunner.setTest(suite);
+        final TestResult result = new TestResult();
+        for (final TestListener listener : testRunner.getTestListeners()) {
+            result.addListener(listener);
+        }
+        testRunner.getTest().run(result);
+        runner.finish(0, new Bundle());
+    }
+
+    /**
+     * Test suites of all the reports in the directory.
+     */
+    private List<Element> readSuites() throws Exception {
+        final List<Element> suites = new ArrayList<Element>();
+        final File[] files = directory.listFiles();
+        for (final File f : files) {
+            if (f.getName().endsWith(".zip")) {
+                final ZipFile zip = new ZipFile(f);
+                try {
+                    final Enumeration< ? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        addSuites(parse(zip.getInputStream(entries.nextElement())), suites);
+                    }
+                } finally {
+                    zip.close();
+                }
+            } else if (f.getName().endsWith(".xml")) {
+                addSuites(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(f), suites);
+            }
+        }
+        return suites;
+    }
+
+    private static Document parse(final InputStream in) throws Exception {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void addSuites(final Document document, final List<Element> suites) {
+        final NodeList nodes = document.getElementsByTagName("testsuite");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            suites.add((Element) nodes.item(i));
+        }
+    }
+
+    /**
+     * Class whose second test fails the first time it runs.
+     */
+    public static class Retried extends TestCase {
+        static int failures;
+
+        public Retried(final String name) {
+            super(name);
+        }
+
+        public void testPass() {
+            // passes
+        }
+
+        public void testFailOnce() {
+            if (failures > 0) {
+                failures--;
+                fail("first run");
+            }
+        }
+    }
+
+    public static class Other extends TestCase {
+        public Other(final String name) {
+            super(name);
+        }
+
+        public void testOther() {
+            // passes
+        }
+    }
+
+    private static class TestContext extends Context {
+        private final Resources resources = new Resources();
+        private final File directory;
+
+        TestContext(final File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public Resources getResources() {
+            return resources;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return directory;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return directory;
+        }
+
+        @Override
+        public String getPackageName() {
+            return "pl.polidea.instrumentation.test";
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package pl.polidea.instrumentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.kxml2.io.KXmlSerializer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Compares {@link XmlReportWriter} with the KXmlSerializer it replaced: the
+ * same events written by both must parse to the same document, whitespace of
+ * the indentation included. The bytes differ only in escaping: KXmlSerializer
+ * quotes attributes with apostrophes when they contain quotes and escapes @.
+ */
+public class XmlReportWriterTest extends TestCase {
+
+    private static final String INDENT_OUTPUT = "http://xmlpull.org/v1/doc/features.html#indent-output";
+    private static final String ATTRIBUTE = "quote\" lt< gt> amp& tab\t lf\n cr\r at@ e\u00e9 \u20ac \ud83d\ude00";
+    private static final String TEXT = "junit.framework.AssertionFailedError: expected:<1> but was:<2> & more\n"
+            + "\tat pl.polidea.Sample.test(Sample.java:10)\r\n\u00e9\u20ac\ud83d\ude00 \"quoted\" at@";
+
+    /**
+     * Receives the events of a report.
+     */
+    private interface Events {
+        void startTag(String name) throws IOException;
+
+        void attribute(String name, String value) throws IOException;
+
+        void text(String text) throws IOException;
+
+        void endTag(String name) throws IOException;
+    }
+
+    public void testPrettyOutputParsesLikeKXmlSerializer() throws Exception {
+        assertSameDocument(true);
+    }
+
+    public void testCompactOutputParsesLikeKXmlSerializer() throws Exception {
+        assertSameDocument(false);
+    }
+
+    public void testValuesRoundTrip() throws Exception {
+        final Document document = parse(writeReport(true));
+        final Element suite = (Element) document.getElementsByTagName("testsuite").item(0);
+        assertEquals(ATTRIBUTE, suite.getAttribute("name"));
+        // the parser normalizes CR LF in text, not in the escaped attribute
+        assertEquals(TEXT.replace("\r\n", "\n"), document.getElementsByTagName("failure").item(0).getTextContent());
+    }
+
+    public void testCharactersNotAllowedInXmlAreReplaced() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlReportWriter writer = new XmlReportWriter(out, false);
+        writer.startDocument();
+        writer.startTag("testcase").attribute("name", "nul\u0000 bell\u0007 esc\u001b");
+        writer.text("vt\u000b ff\u000c unit\u001f lone\ud800 low\udc00 fffe\ufffe ffff\uffff pair\ud83d\ude00");
+        writer.endTag("testcase");
+        writer.endDocument();
+        final Element testCase = parse(out.toByteArray()).getDocumentElement();
+        assertEquals("nul? bell? esc?", testCase.getAttribute("name"));
+        assertEquals("vt? ff? unit? lone? low? fffe? ffff? pair\ud83d\ude00", testCase.getTextContent());
+    }
+
+    public void testReaderKeepsSurrogatePairsSplitBetweenReads() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i % 3 == 0 ? "\ud83d\ude00" : "a");
+        }
+        final String text = sb.toString();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlReportWriter writer = new XmlReportWriter(out, false);
+        writer.startDocument();
+        writer.startTag("system-out");
+        writer.text(new ShortReader(text, 3));
+        writer.endTag("system-out");
+        writer.endDocument();
+        assertEquals(text, parse(out.toByteArray()).getDocumentElement().getTextContent());
+    }
+
+    private void assertSameDocument(final boolean pretty) throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final KXmlSerializer serializer = new KXmlSerializer();
+        if (pretty) {
+            serializer.setFeature(INDENT_OUTPUT, true);
+        }
+        serializer.setOutput(expected, "UTF-8");
+        serializer.startDocument("UTF-8", null);
+        writeReport(new Events() {
+            @Override
+            public void startTag(final String name) throws IOException {
+                serializer.startTag(null, name);
+            }
+
+            @Override
+            public void attribute(final String name, final String value) throws IOException {
+                serializer.attribute(null, name, value);
+            }
+
+            @Override
+            public void text(final String text) throws IOException {
+                serializer.text(text);
+            }
+
+            @Override
+            public void endTag(final String name) throws IOException {
+                serializer.endTag(null, name);
+            }
+        });
+        serializer.endDocument();
+        final Document expectedDocument = parse(expected.toByteArray());
+        final Document actualDocument = parse(writeReport(pretty));
+        assertTrue(new String(writeReport(pretty), "UTF-8"), expectedDocument.isEqualNode(actualDocument));
+    }
+
+    private static byte[] writeReport(final boolean pretty) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlReportWriter writer = new XmlReportWriter(out, pretty);
+        writer.startDocument();
+        writeReport(new Events() {
+            @Override
+            public void startTag(final String name) throws IOException {
+                writer.startTag(name);
+            }
+
+            @Override
+            public void attribute(final String name, final String value) throws IOException {
+                writer.attribute(name, value);
+            }
+
+            @Override
+            public void text(final String text) throws IOException {
+                writer.text(text);
+            }
+
+            @Override
+            public void endTag(final String name) throws IOException {
+                writer.endTag(name);
+            }
+        });
+        writer.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Report with the elements, attributes and text the runner writes.
+     */
+    private static void writeReport(final Events events) throws IOException {
+        events.startTag("testsuites");
+        events.startTag("testsuite");
+        events.attribute("errors", "0");
+        events.attribute("name", ATTRIBUTE);
+        events.startTag("testcase");
+        events.attribute("classname", "pl.polidea.Sample");
+        events.attribute("name", "testPass");
+        events.attribute("time", "0.001500");
+        events.endTag("testcase");
+        events.startTag("testcase");
+        events.attribute("name", "testFail");
+        events.startTag("failure");
+        events.text(TEXT);
+        events.endTag("failure");
+        events.endTag("testcase");
+        events.startTag("properties");
+        events.startTag("property");
+        events.attribute("name", "android.Build.MODEL");
+        events.attribute("value", ATTRIBUTE);
+        events.endTag("property");
+        events.endTag("properties");
+        events.startTag("system-out");
+        events.endTag("system-out");
+        events.endTag("testsuite");
+        events.endTag("testsuites");
+    }
+
+    private static Document parse(final byte[] xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * Returns at most the given number of characters per read.
+     */
+    private static class ShortReader extends Reader {
+        private final Reader in;
+        private final int maxRead;
+
+        ShortReader(final String text, final int maxRead) {
+            this.in = new StringReader(text);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            return in.read(buffer, offset, Math.min(length, maxRead));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
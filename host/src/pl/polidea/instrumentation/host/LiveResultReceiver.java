@@ -0,0 +1,433 @@
+package pl.polidea.instrumentation.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Host side receiver of the live results published by
+ * PolideaInstrumentationTestRunner with junitLive argument. It shows progress
+ * as the results arrive and rebuilds the JUnit XML file from them, so the
+ * files do not have to be pulled from the device. Results are read either
+ * from the output of "am instrument -r" (status mode) or from the runner's
+ * socket forwarded with "adb forward" (socket mode). Usage:
+ *
+ * <pre>
+ * adb shell am instrument -r -e junitLive status -w &lt;runner&gt; | java -jar receiver.jar -stdin results.xml
+ * adb forward tcp:8555 tcp:8555
+ * java -jar receiver.jar -port 8555 [-failFast] results.xml
+ * </pre>
+ *
+ * The exit code is 0 when all tests passed and 1 otherwise. With -failFast
+ * the receiver stops and writes the results at the first error or failure.
+ *
+ */
+public class LiveResultReceiver {
+
+    private static final String STATUS_PREFIX = "INSTRUMENTATION_STATUS: junitLive=";
+    private static final String RECORD_RUN = "RUN";
+    private static final String RECORD_START = "START";
+    private static final String RECORD_END = "END";
+    private static final String RECORD_DONE = "DONE";
+    private static final String RESULT_PASS = "PASS";
+    private static final String RESULT_ERROR = "ERROR";
+    private static final String RESULT_FAILURE = "FAILURE";
+    private static final int DEFAULT_PORT = 8555;
+    /**
+     * How long (in ms) the receiver keeps trying to connect to the runner.
+     */
+    private static final int CONNECT_TIMEOUT = 60000;
+    private static final int CONNECT_RETRY_DELAY = 500;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Result of a single test.
+     */
+    static class TestResult {
+        String name;
+        String result;
+        long timeNanos;
+        String trace;
+        boolean running;
+    }
+
+    /**
+     * Results of a test case class.
+     */
+    static class SuiteResult {
+        String className;
+        final Map<String, TestResult> tests = new LinkedHashMap<String, TestResult>();
+        int errors;
+        int failures;
+        long timeNanos;
+    }
+
+    private final Map<String, SuiteResult> suites = new LinkedHashMap<String, SuiteResult>();
+    private final boolean failFast;
+    private final long startMillis = System.currentTimeMillis();
+    private final String timestamp;
+    private int totalTests = -1;
+    private int finishedTests;
+    private int failedTests;
+    private boolean done;
+
+    public LiveResultReceiver(final boolean failFast) {
+        this.failFast = failFast;
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.timestamp = format.format(new Date(startMillis));
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        boolean stdin = false;
+        boolean failFast = false;
+        File output = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("-stdin".equals(args[i])) {
+                stdin = true;
+            } else if ("-failFast".equals(args[i])) {
+                failFast = true;
+            } else {
+                output = new File(args[i]);
+            }
+        }
+        if (output == null) {
+            System.err.println("Usage: LiveResultReceiver [-port <port> | -stdin] [-failFast] <output xml file>");
+            System.exit(2);
+        }
+        final LiveResultReceiver receiver = new LiveResultReceiver(failFast);
+        if (stdin) {
+            receiver.receive(new InputStreamReader(System.in, "UTF-8"), true);
+        } else {
+            final Socket socket = connect(port);
+            try {
+                receiver.receive(new InputStreamReader(socket.getInputStream(), "UTF-8"), false);
+            } finally {
+                socket.close();
+            }
+        }
+        receiver.writeXml(output);
+        System.exit(receiver.failedTests == 0 && receiver.done ? 0 : 1);
+    }
+
+    private static Socket connect(final int port) throws IOException {
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (final ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_DELAY);
+                } catch (final InterruptedException ie) {
+                    throw new IOException("Interrupted while connecting");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads records until the end of the run, the end of the stream or the
+     * first failure in fail fast mode.
+     *
+     * @param reader
+     *            source of the records
+     * @param statusOutput
+     *            whether the source is "am instrument -r" output, in which
+     *            records are wrapped in status lines
+     */
+    public void receive(final Reader reader, final boolean statusOutput) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        String line;
+        while (!done && (line = in.readLine()) != null) {
+            if (statusOutput) {
+                if (!line.startsWith(STATUS_PREFIX)) {
+                    continue;
+                }
+                line = line.substring(STATUS_PREFIX.length());
+            }
+            final List<String> fields = split(line);
+            if (!isWellFormed(fields)) {
+                // most likely the last line, cut when the device died
+                System.out.println("Skipping malformed record: " + line);
+                continue;
+            }
+            if (!processRecord(fields)) {
+                return;
+            }
+        }
+        if (!done) {
+            System.out.println("Stream ended before the run finished");
+            markUnfinished();
+        }
+    }
+
+    /**
+     * Checks that the record has all the fields its type needs and that its
+     * numbers parse. Records of unknown types are ignored later.
+     */
+    static boolean isWellFormed(final List<String> fields) {
+        final String type = fields.get(0);
+        try {
+            if (RECORD_RUN.equals(type)) {
+                return fields.size() >= 2 && Integer.parseInt(fields.get(1)) >= 0;
+            } else if (RECORD_START.equals(type)) {
+                return fields.size() >= 3;
+            } else if (RECORD_END.equals(type)) {
+                final String result = fields.size() >= 5 ? fields.get(3) : null;
+                return (RESULT_PASS.equals(result) || RESULT_ERROR.equals(result) || RESULT_FAILURE.equals(result))
+                        && Long.parseLong(fields.get(4)) >= 0;
+            } else if (RECORD_DONE.equals(type)) {
+                return fields.size() >= 4;
+            }
+            return true;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return false if receiving should stop
+     */
+    private boolean processRecord(final List<String> fields) {
+        final String type = fields.get(0);
+        if (RECORD_RUN.equals(type)) {
+            totalTests = Integer.parseInt(fields.get(1));
+            System.out.println("Running " + totalTests + " tests");
+        } else if (RECORD_START.equals(type)) {
+            // the result of a previous attempt stays until the retry ends
+            getTest(fields.get(1), fields.get(2)).running = true;
+        } else if (RECORD_END.equals(type)) {
+            final String className = fields.get(1);
+            final TestResult test = getTest(className, fields.get(2));
+            final SuiteResult suite = suites.get(className);
+            if (test.result == null) {
+                finishedTests++;
+            } else {
+                // a retried test replaces the outcome of its previous attempt
+                suite.timeNanos -= test.timeNanos;
+                count(suite, test.result, -1);
+            }
+            test.running = false;
+            test.result = fields.get(3);
+            test.timeNanos = Long.parseLong(fields.get(4));
+            test.trace = fields.size() > 5 ? fields.get(5) : null;
+            suite.timeNanos += test.timeNanos;
+            count(suite, test.result, 1);
+            printProgress(className, test);
+            if (failFast && !RESULT_PASS.equals(test.result)) {
+                System.out.println("Stopping at first failure");
+                return false;
+            }
+        } else if (RECORD_DONE.equals(type)) {
+            done = true;
+            System.out.println("Finished: " + fields.get(1) + " tests, " + fields.get(2) + " errors, "
+                    + fields.get(3) + " failures in " + (System.currentTimeMillis() - startMillis) / 1000 + " s");
+        }
+        return true;
+    }
+
+    private TestResult getTest(final String className, final String name) {
+        SuiteResult suite = suites.get(className);
+        if (suite == null) {
+            suite = new SuiteResult();
+            suite.className = className;
+            suites.put(className, suite);
+        }
+        TestResult test = suite.tests.get(name);
+        if (test == null) {
+            test = new TestResult();
+            test.name = name;
+            suite.tests.put(name, test);
+        }
+        return test;
+    }
+
+    /**
+     * Adds (or with negative delta removes) the outcome of a test to the
+     * counts.
+     */
+    private void count(final SuiteResult suite, final String result, final int delta) {
+        if (RESULT_ERROR.equals(result)) {
+            suite.errors += delta;
+        } else if (RESULT_FAILURE.equals(result)) {
+            suite.failures += delta;
+        }
+        if (!RESULT_PASS.equals(result)) {
+            failedTests += delta;
+        }
+    }
+
+    /**
+     * Reports tests that started but never finished as errors, since the
+     * process most likely died while running them.
+     */
+    private void markUnfinished() {
+        for (final SuiteResult suite : suites.values()) {
+            for (final TestResult test : suite.tests.values()) {
+                if (test.running) {
+                    if (test.result != null) {
+                        count(suite, test.result, -1);
+                    }
+                    test.running = false;
+                    test.result = RESULT_ERROR;
+                    test.trace = "Process died while running " + test.name;
+                    count(suite, test.result, 1);
+                }
+            }
+        }
+    }
+
+    private void printProgress(final String className, final TestResult test) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('[').append(finishedTests);
+        if (totalTests > 0) {
+            sb.append('/').append(totalTests);
+        }
+        sb.append("] ").append(test.result).append(' ').append(className).append('#').append(test.name);
+        sb.append(" (").append(test.timeNanos / NANOS_PER_MILLI).append(" ms)");
+        if (totalTests > finishedTests) {
+            final long elapsed = System.currentTimeMillis() - startMillis;
+            sb.append(" ETA ").append(elapsed * (totalTests - finishedTests) / finishedTests / 1000).append(" s");
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * Writes the results in the same format as the runner does with
+     * junitSplitLevel "none".
+     */
+    public void writeXml(final File output) throws IOException {
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output),
+                "UTF-8"));
+        try {
+            writer.println("<?xml version='1.0' encoding='UTF-8' ?>");
+            writer.println("<testsuites>");
+            for (final SuiteResult suite : suites.values()) {
+                final int dot = suite.className.lastIndexOf('.');
+                writer.print("  <testsuite errors=\"" + suite.errors + "\" failures=\"" + suite.failures
+                        + "\" name=\"" + escape(suite.className) + "\" package=\""
+                        + escape(dot < 0 ? "" : suite.className.substring(0, dot)) + "\" tests=\""
+                        + countFinished(suite) + "\" time=\"" + formatTime(suite.timeNanos) + "\" timestamp=\""
+                        + timestamp + "\">\n");
+                for (final TestResult test : suite.tests.values()) {
+                    if (test.result == null) {
+                        continue;
+                    }
+                    writer.print("    <testcase classname=\"" + escape(suite.className) + "\" name=\""
+                            + escape(test.name) + "\" time=\"" + formatTime(test.timeNanos) + "\"");
+                    if (RESULT_PASS.equals(test.result)) {
+                        writer.print(" />\n");
+                    } else {
+                        final String tag = RESULT_ERROR.equals(test.result) ? "error" : "failure";
+                        writer.print(">\n      <" + tag + ">" + escape(test.trace) + "</" + tag + ">\n");
+                        writer.print("    </testcase>\n");
+                    }
+                }
+                writer.print("    <properties />\n    <system-out />\n    <system-err />\n  </testsuite>\n");
+            }
+            writer.println("</testsuites>");
+        } finally {
+            writer.close();
+        }
+        System.out.println("Results written to " + output);
+    }
+
+    private static int countFinished(final SuiteResult suite) {
+        int count = 0;
+        for (final TestResult test : suite.tests.values()) {
+            if (test.result != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static String formatTime(final long nanos) {
+        final long micros = Math.abs(nanos) / 1000;
+        final String fraction = Long.toString(1000000 + micros % 1000000).substring(1);
+        return (nanos < 0 ? "-" : "") + micros / 1000000 + "." + fraction;
+    }
+
+    /**
+     * Splits a record into fields, reversing the escaping done by the
+     * runner.
+     */
+    static List<String> split(final String line) {
+        final List<String> fields = new ArrayList<String>();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                final char next = line.charAt(++i);
+                switch (next) {
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields;
+    }
+
+    private static String escape(final String s) {
+        if (s == null) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
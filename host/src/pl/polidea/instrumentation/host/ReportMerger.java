@@ -0,0 +1,452 @@
+package pl.polidea.instrumentation.host;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Merges JUnit XML reports written by PolideaInstrumentationTestRunner on many
+ * devices into one report per device and summarizes them (see
+ * {@link ReportSummary}). Usage:
+ *
+ * <pre>
+ * java -cp host.jar pl.polidea.instrumentation.host.ReportMerger [-o &lt;output directory&gt;] [-top &lt;n&gt;] &lt;report or directory&gt;...
+ * </pre>
+ *
+ * Reports are given as files or directories, which are searched for *.xml,
+ * *.xml.gz and *.zip files (as written with junitCompression). The device of a
+ * report is named after the android.Build properties of its first test suite
+ * that has them; reports without properties (see junitPropertiesMode) belong
+ * to the device of another report in the same directory, or to a device named
+ * after the directory. With -o the test suites of each device are written to
+ * &lt;device&gt;-TEST.xml in the output directory, with the device in their
+ * hostname attribute. The summary is printed to standard output.
+ *
+ * Reports are read with a streaming parser and test suites are copied as they
+ * are read, so memory does not depend on the size of the reports. Each report
+ * is read twice: first only up to the device properties, then in full. The
+ * exit code is 0 when all tests passed and 1 otherwise.
+ *
+ */
+public class ReportMerger {
+
+    private static final String TESTSUITES = "testsuites";
+    private static final String TESTSUITE = "testsuite";
+    private static final String TESTCASE = "testcase";
+    private static final String PROPERTIES = "properties";
+    private static final String PROPERTY = "property";
+    private static final String ERROR = "error";
+    private static final String FAILURE = "failure";
+    private static final String FLAKY_ERROR = "flakyError";
+    private static final String FLAKY_FAILURE = "flakyFailure";
+    private static final String NAME = "name";
+    private static final String VALUE = "value";
+    private static final String CLASSNAME = "classname";
+    private static final String PACKAGE = "package";
+    private static final String TIME = "time";
+    private static final String HOSTNAME = "hostname";
+    private static final String BUILD_PREFIX = "android.Build.";
+    private static final String UNKNOWN = "unknown";
+    private static final String REPORT_POSTFIX = "-TEST.xml";
+    private static final int DEFAULT_TOP = 20;
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Report file, or a report in a zip archive.
+     */
+    static class Report {
+        final File file;
+        final String entry;
+        String device;
+
+        Report(final File file, final String entry) {
+            this.file = file;
+            this.entry = entry;
+        }
+
+        InputStream open() throws IOException {
+            if (entry != null) {
+                final ZipFile zip = new ZipFile(file);
+                final ZipEntry zipEntry = zip.getEntry(entry);
+                return new BufferedInputStream(zip.getInputStream(zipEntry), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        zip.close();
+                    }
+                };
+            }
+            final InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            return file.getName().endsWith(".gz") ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+        }
+
+        @Override
+        public String toString() {
+            return entry == null ? file.getPath() : file.getPath() + "!" + entry;
+        }
+    }
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final ReportSummary summary;
+
+    public ReportMerger(final ReportSummary summary) {
+        this.summary = summary;
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        File output = null;
+        int top = DEFAULT_TOP;
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-o".equals(args[i]) && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if ("-top".equals(args[i]) && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else {
+                inputs.add(new File(args[i]));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: ReportMerger [-o <output directory>] [-top <n>] <report or directory>...");
+            System.exit(2);
+        }
+        final List<Report> reports = new ArrayList<Report>();
+        for (final File input : inputs) {
+            findReports(input, output == null ? null : output.getCanonicalFile(), reports);
+        }
+        final ReportSummary summary = new ReportSummary(top);
+        try {
+            new ReportMerger(summary).merge(reports, output);
+        } catch (final XMLStreamException e) {
+            System.err.println("Error: " + e);
+            System.exit(2);
+        }
+        summary.print(System.out);
+        System.exit(summary.passed() ? 0 : 1);
+    }
+
+    /**
+     * Adds the reports found in the file or directory, except for those in
+     * the output directory, which would be merged again.
+     */
+    static void findReports(final File input, final File outputDirectory, final List<Report> reports)
+            throws IOException {
+        if (input.isDirectory()) {
+            if (input.getCanonicalFile().equals(outputDirectory)) {
+                return;
+            }
+            final File[] files = input.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (final File f : files) {
+                    findReports(f, outputDirectory, reports);
+                }
+            }
+        } else if (input.getName().endsWith(".zip")) {
+            final ZipFile zip = new ZipFile(input);
+            try {
+                final Enumeration< ? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().endsWith(".xml")) {
+                        reports.add(new Report(input, entry.getName()));
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        } else if (input.getName().endsWith(".xml") || input.getName().endsWith(".xml.gz")) {
+            reports.add(new Report(input, null));
+        }
+    }
+
+    /**
+     * Merges the reports of each device, summarizing them.
+     *
+     * @param outputDirectory
+     *            directory the merged reports are written to, null to only
+     *            summarize them
+     */
+    public void merge(final List<Report> reports, final File outputDirectory) throws IOException,
+            XMLStreamException {
+        final Map<String, List<Report>> devices = groupByDevice(reports);
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + outputDirectory);
+        }
+        for (final Map.Entry<String, List<Report>> device : devices.entrySet()) {
+            XMLStreamWriter writer = null;
+            OutputStream out = null;
+            if (outputDirectory != null) {
+                final File f = new File(outputDirectory, toFileName(device.getKey()) + REPORT_POSTFIX);
+                out = new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE);
+                writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeCharacters("\n");
+                writer.writeStartElement(TESTSUITES);
+            }
+            try {
+                for (final Report report : device.getValue()) {
+                    copy(report, device.getKey(), writer);
+                }
+                if (writer != null) {
+                    writer.writeCharacters("\n");
+                    writer.writeEndElement();
+                    writer.writeEndDocument();
+                    writer.close();
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private Map<String, List<Report>> groupByDevice(final List<Report> reports) throws IOException,
+            XMLStreamException {
+        final Map<File, String> directoryDevices = new HashMap<File, String>();
+        for (final Report report : reports) {
+            final Map<String, String> properties = readDeviceProperties(report);
+            if (!properties.isEmpty()) {
+                report.device = getDeviceName(properties);
+                final File directory = report.file.getAbsoluteFile().getParentFile();
+                if (!directoryDevices.containsKey(directory)) {
+                    directoryDevices.put(directory, report.device);
+                }
+            }
+        }
+        final Map<String, List<Report>> devices = new LinkedHashMap<String, List<Report>>();
+        for (final Report report : reports) {
+            if (report.device == null) {
+                final File directory = report.file.getAbsoluteFile().getParentFile();
+                report.device = directoryDevices.get(directory);
+                if (report.device == null) {
+                    report.device = directory.getName();
+                }
+            }
+            List<Report> deviceReports = devices.get(report.device);
+            if (deviceReports == null) {
+                deviceReports = new ArrayList<Report>();
+                devices.put(report.device, deviceReports);
+            }
+            deviceReports.add(report);
+        }
+        return devices;
+    }
+
+    /**
+     * Reads the report up to the end of the first properties with
+     * android.Build properties.
+     *
+     * @return the android.Build properties, empty if the report has none
+     */
+    private Map<String, String> readDeviceProperties(final Report report) throws IOException, XMLStreamException {
+        final Map<String, String> properties = new HashMap<String, String>();
+        final InputStream in = report.open();
+        try {
+            final XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && PROPERTY.equals(reader.getLocalName())) {
+                        final String name = reader.getAttributeValue(null, NAME);
+                        if (name != null && name.startsWith(BUILD_PREFIX)) {
+                            properties.put(name, reader.getAttributeValue(null, VALUE));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && PROPERTIES.equals(reader.getLocalName())
+                            && !properties.isEmpty()) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Copies test suites of the report to the writer, if any, adding their
+     * test cases to the summary.
+     */
+    private void copy(final Report report, final String device, final XMLStreamWriter writer) throws IOException,
+            XMLStreamException {
+        summary.addFile(device);
+        final InputStream in = report.open();
+        try {
+            final XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                copySuites(reader, device, writer);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void copySuites(final XMLStreamReader reader, final String device, final XMLStreamWriter writer)
+            throws XMLStreamException {
+        // depth below the test suite being copied, -1 outside of test suites
+        int depth = -1;
+        String packageName = null;
+        String className = null;
+        String testName = null;
+        double time = 0;
+        boolean error = false;
+        boolean failure = false;
+        boolean flaky = false;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                final String element = reader.getLocalName();
+                if (depth < 0) {
+                    if (!TESTSUITE.equals(element)) {
+                        continue;
+                    }
+                    packageName = reader.getAttributeValue(null, PACKAGE);
+                    if (writer != null) {
+                        writer.writeCharacters("\n  ");
+                        copyStartElement(reader, writer);
+                        if (reader.getAttributeValue(null, HOSTNAME) == null) {
+                            writer.writeAttribute(HOSTNAME, device);
+                        }
+                    }
+                    depth = 0;
+                    continue;
+                }
+                depth++;
+                if (depth == 1 && TESTCASE.equals(element)) {
+                    className = reader.getAttributeValue(null, CLASSNAME);
+                    testName = reader.getAttributeValue(null, NAME);
+                    time = parseTime(reader.getAttributeValue(null, TIME));
+                    error = false;
+                    failure = false;
+                    flaky = false;
+                } else if (depth == 2 && className != null) {
+                    error |= ERROR.equals(element);
+                    failure |= FAILURE.equals(element);
+                    flaky |= FLAKY_ERROR.equals(element) || FLAKY_FAILURE.equals(element);
+                }
+                if (writer != null) {
+                    copyStartElement(reader, writer);
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (depth < 0) {
+                    continue;
+                }
+                if (writer != null) {
+                    writer.writeEndElement();
+                }
+                if (depth == 1 && className != null) {
+                    summary.addTest(device, packageName != null ? packageName : getPackageName(className),
+                            className, testName, time, error, failure, flaky);
+                    className = null;
+                }
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                if (depth >= 0 && writer != null) {
+                    writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                if (depth >= 0 && writer != null) {
+                    writer.writeCData(reader.getText());
+                }
+                break;
+            default:
+                // comments and processing instructions are not copied
+            }
+        }
+    }
+
+    private static void copyStartElement(final XMLStreamReader reader, final XMLStreamWriter writer)
+            throws XMLStreamException {
+        writer.writeStartElement(reader.getLocalName());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+
+    private static double parseTime(final String time) {
+        if (time == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(time);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String getPackageName(final String className) {
+        final int dot = className.lastIndexOf('.');
+        return dot < 0 ? "" : className.substring(0, dot);
+    }
+
+    /**
+     * Names the device after its manufacturer, model, API level and serial
+     * number, if known.
+     */
+    static String getDeviceName(final Map<String, String> properties) {
+        final StringBuilder sb = new StringBuilder();
+        appendProperty(sb, properties.get("android.Build.MANUFACTURER"), "");
+        appendProperty(sb, properties.get("android.Build.MODEL"), "");
+        appendProperty(sb, properties.get("android.Build.VERSION.SDK_INT"), "API ");
+        appendProperty(sb, properties.get("android.Build.SERIAL"), "");
+        if (sb.length() == 0) {
+            appendProperty(sb, properties.get("android.Build.FINGERPRINT"), "");
+        }
+        return sb.length() == 0 ? UNKNOWN : sb.toString();
+    }
+
+    private static void appendProperty(final StringBuilder sb, final String value, final String prefix) {
+        if (value == null || value.length() == 0 || UNKNOWN.equals(value)) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(' ');
+        }
+        sb.append(prefix).append(value);
+    }
+
+    private static String toFileName(final String device) {
+        final StringBuilder sb = new StringBuilder(device.length());
+        for (int i = 0; i < device.length(); i++) {
+            final char c = device.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        return sb.toString();
+    }
+}
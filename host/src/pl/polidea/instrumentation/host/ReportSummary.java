@@ -0,0 +1,307 @@
+package pl.polidea.instrumentation.host;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Summary of the tests merged by {@link ReportMerger}, computed as the test
+ * cases stream by. Nothing of a test case is kept except its duration
+ * statistics, so memory grows with the number of distinct tests and packages,
+ * not with the size of the reports (stack traces, captured output or number
+ * of devices).
+ *
+ * <ul>
+ * <li>totals per device and overall</li>
+ * <li>slowest tests - the longest single runs on any device</li>
+ * <li>time per package, summed over all devices</li>
+ * <li>cross-device duration variance - tests that ran on more than one device,
+ * with the largest standard deviation of their duration</li>
+ * </ul>
+ *
+ */
+public class ReportSummary {
+
+    /**
+     * Totals of a single device.
+     */
+    static class DeviceTotals {
+        final String device;
+        int files;
+        int tests;
+        int errors;
+        int failures;
+        int flaky;
+        double time;
+
+        DeviceTotals(final String device) {
+            this.device = device;
+        }
+    }
+
+    /**
+     * Single run of a test.
+     */
+    static class TestRun {
+        final String device;
+        final String className;
+        final String name;
+        final double time;
+
+        TestRun(final String device, final String className, final String name, final double time) {
+            this.device = device;
+            this.className = className;
+            this.name = name;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Duration statistics of a test over all devices, updated one run at a
+     * time with Welford's method.
+     */
+    static class TestStats {
+        final String className;
+        final String name;
+        int count;
+        double mean;
+        double m2;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        String minDevice;
+        String maxDevice;
+
+        TestStats(final String className, final String name) {
+            this.className = className;
+            this.name = name;
+        }
+
+        void add(final String device, final double time) {
+            count++;
+            final double delta = time - mean;
+            mean += delta / count;
+            m2 += delta * (time - mean);
+            if (time < min) {
+                min = time;
+                minDevice = device;
+            }
+            if (time > max) {
+                max = time;
+                maxDevice = device;
+            }
+        }
+
+        double standardDeviation() {
+            return count < 2 ? 0 : Math.sqrt(m2 / count);
+        }
+    }
+
+    /**
+     * Statistics of the tests of a class.
+     */
+    static class ClassStats {
+        final String className;
+        final Map<String, TestStats> tests = new HashMap<String, TestStats>();
+
+        ClassStats(final String className) {
+            this.className = className;
+        }
+    }
+
+    /**
+     * Time of the tests of a package.
+     */
+    static class PackageTime {
+        final String name;
+        int tests;
+        double time;
+
+        PackageTime(final String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Comparator<TestRun> BY_TIME = new Comparator<TestRun>() {
+        @Override
+        public int compare(final TestRun lhs, final TestRun rhs) {
+            return Double.compare(lhs.time, rhs.time);
+        }
+    };
+
+    private static final Comparator<TestStats> BY_DEVIATION = new Comparator<TestStats>() {
+        @Override
+        public int compare(final TestStats lhs, final TestStats rhs) {
+            return Double.compare(lhs.standardDeviation(), rhs.standardDeviation());
+        }
+    };
+
+    private static final Comparator<PackageTime> BY_PACKAGE_TIME = new Comparator<PackageTime>() {
+        @Override
+        public int compare(final PackageTime lhs, final PackageTime rhs) {
+            return Double.compare(rhs.time, lhs.time);
+        }
+    };
+
+    private final int top;
+    private final Map<String, DeviceTotals> devices = new LinkedHashMap<String, DeviceTotals>();
+    /**
+     * The slowest runs so far, the fastest of them at the head.
+     */
+    private final PriorityQueue<TestRun> slowest;
+    /**
+     * Statistics of each test, by class and test name, so that class names
+     * are kept once.
+     */
+    private final Map<String, ClassStats> tests = new HashMap<String, ClassStats>();
+    private final Map<String, PackageTime> packages = new HashMap<String, PackageTime>();
+
+    /**
+     * @param top
+     *            number of tests listed as slowest and as varying most
+     */
+    public ReportSummary(final int top) {
+        this.top = top;
+        this.slowest = new PriorityQueue<TestRun>(Math.max(1, top + 1), BY_TIME);
+    }
+
+    void addFile(final String device) {
+        getDevice(device).files++;
+    }
+
+    void addTest(final String device, final String packageName, final String className, final String name,
+            final double time, final boolean error, final boolean failure, final boolean flaky) {
+        final DeviceTotals totals = getDevice(device);
+        totals.tests++;
+        totals.time += time;
+        if (error) {
+            totals.errors++;
+        }
+        if (failure) {
+            totals.failures++;
+        }
+        if (flaky) {
+            totals.flaky++;
+        }
+        if (top > 0 && (slowest.size() < top || time > slowest.peek().time)) {
+            slowest.add(new TestRun(totals.device, className, name, time));
+            if (slowest.size() > top) {
+                slowest.poll();
+            }
+        }
+        ClassStats classStats = tests.get(className);
+        if (classStats == null) {
+            classStats = new ClassStats(className);
+            tests.put(className, classStats);
+        }
+        TestStats stats = classStats.tests.get(name);
+        if (stats == null) {
+            stats = new TestStats(classStats.className, name);
+            classStats.tests.put(name, stats);
+        }
+        stats.add(totals.device, time);
+        PackageTime packageTime = packages.get(packageName);
+        if (packageTime == null) {
+            packageTime = new PackageTime(packageName);
+            packages.put(packageName, packageTime);
+        }
+        packageTime.tests++;
+        packageTime.time += time;
+    }
+
+    /**
+     * @return true if no test had an error or failure
+     */
+    public boolean passed() {
+        for (final DeviceTotals totals : devices.values()) {
+            if (totals.errors > 0 || totals.failures > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void print(final PrintStream out) {
+        final DeviceTotals all = new DeviceTotals("all devices");
+        out.println("Devices:");
+        for (final DeviceTotals totals : devices.values()) {
+            printTotals(out, totals);
+            all.files += totals.files;
+            all.tests += totals.tests;
+            all.errors += totals.errors;
+            all.failures += totals.failures;
+            all.flaky += totals.flaky;
+            all.time += totals.time;
+        }
+        printTotals(out, all);
+        out.println();
+        out.println("Slowest tests:");
+        for (final TestRun run : sortedDescending(slowest, BY_TIME)) {
+            out.println("  " + formatSeconds(run.time) + "  " + run.className + "#" + run.name + " on " + run.device);
+        }
+        out.println();
+        out.println("Time per package:");
+        final List<PackageTime> packageTimes = new ArrayList<PackageTime>(packages.values());
+        Collections.sort(packageTimes, BY_PACKAGE_TIME);
+        for (final PackageTime packageTime : packageTimes) {
+            out.println("  " + formatSeconds(packageTime.time) + "  " + packageTime.name + " (" + packageTime.tests
+                    + " tests)");
+        }
+        out.println();
+        out.println("Largest duration variance across devices:");
+        for (final TestStats stats : mostVarying()) {
+            out.println("  " + formatSeconds(stats.standardDeviation()) + " std dev  " + stats.className + "#"
+                    + stats.name + ": mean " + formatSeconds(stats.mean) + " over " + stats.count + " runs, min "
+                    + formatSeconds(stats.min) + " on " + stats.minDevice + ", max " + formatSeconds(stats.max)
+                    + " on " + stats.maxDevice);
+        }
+    }
+
+    private List<TestStats> mostVarying() {
+        final PriorityQueue<TestStats> queue = new PriorityQueue<TestStats>(Math.max(1, top + 1), BY_DEVIATION);
+        for (final ClassStats classStats : tests.values()) {
+            for (final TestStats stats : classStats.tests.values()) {
+                if (stats.count < 2 || stats.m2 <= 0) {
+                    continue;
+                }
+                queue.add(stats);
+                if (queue.size() > top) {
+                    queue.poll();
+                }
+            }
+        }
+        return sortedDescending(queue, BY_DEVIATION);
+    }
+
+    private static <T> List<T> sortedDescending(final Collection<T> items, final Comparator<T> comparator) {
+        final List<T> sorted = new ArrayList<T>(items);
+        Collections.sort(sorted, Collections.reverseOrder(comparator));
+        return sorted;
+    }
+
+    private static void printTotals(final PrintStream out, final DeviceTotals totals) {
+        out.println("  " + totals.device + ": " + totals.tests + " tests, " + totals.errors + " errors, "
+                + totals.failures + " failures, " + totals.flaky + " flaky in " + formatSeconds(totals.time) + " ("
+                + totals.files + " files)");
+    }
+
+    private DeviceTotals getDevice(final String device) {
+        DeviceTotals totals = devices.get(device);
+        if (totals == null) {
+            totals = new DeviceTotals(device);
+            devices.put(device, totals);
+        }
+        return totals;
+    }
+
+    static String formatSeconds(final double seconds) {
+        return String.format(Locale.US, "%.3f s", seconds);
+    }
+}
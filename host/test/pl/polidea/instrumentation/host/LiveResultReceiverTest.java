@@ -0,0 +1,70 @@
+package pl.polidea.instrumentation.host;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Feeds the receiver records the way "am instrument -r" prints them.
+ */
+public class LiveResultReceiverTest extends TestCase {
+
+    private static final String PREFIX = "INSTRUMENTATION_STATUS: junitLive=";
+
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception {
+        output = File.createTempFile("live", ".xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        output.delete();
+    }
+
+    public void testMalformedRecordsAreSkipped() throws Exception {
+        final String records = PREFIX + "RUN\tmany\n"
+                + PREFIX + "RUN\t2\n"
+                + PREFIX + "START\tpl.Sample\ttestPass\n"
+                + PREFIX + "END\tpl.Sample\n"
+                + PREFIX + "END\tpl.Sample\ttestPass\tPASS\t1500000\n"
+                + "INSTRUMENTATION_STATUS_CODE: 10\n"
+                + PREFIX + "START\tpl.Sample\ttestDied\n"
+                // the device died while writing the end of the test
+                + PREFIX + "END\tpl.Sample\ttestDied\tFAI";
+        final LiveResultReceiver receiver = new LiveResultReceiver(false);
+        receiver.receive(new StringReader(records), true);
+        receiver.writeXml(output);
+
+        final Element suite = (Element) DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(output)
+                .getElementsByTagName("testsuite").item(0);
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("errors"));
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals("testPass", ((Element) testCases.item(0)).getAttribute("name"));
+        assertEquals("0.001500", ((Element) testCases.item(0)).getAttribute("time"));
+        final Element died = (Element) testCases.item(1);
+        assertEquals("testDied", died.getAttribute("name"));
+        assertEquals("Process died while running testDied", died.getElementsByTagName("error").item(0)
+                .getTextContent());
+    }
+
+    public void testRecordsNeedTheirFields() {
+        assertTrue(LiveResultReceiver.isWellFormed(Arrays.asList("RUN", "3")));
+        assertFalse(LiveResultReceiver.isWellFormed(Arrays.asList("RUN")));
+        assertFalse(LiveResultReceiver.isWellFormed(Arrays.asList("START", "pl.Sample")));
+        assertTrue(LiveResultReceiver.isWellFormed(Arrays.asList("END", "pl.Sample", "test", "ERROR", "5", "trace")));
+        assertFalse(LiveResultReceiver.isWellFormed(Arrays.asList("END", "pl.Sample", "test", "PA", "5")));
+        assertFalse(LiveResultReceiver.isWellFormed(Arrays.asList("END", "pl.Sample", "test", "PASS", "5x")));
+        assertFalse(LiveResultReceiver.isWellFormed(Arrays.asList("DONE", "1", "0")));
+        assertTrue(LiveResultReceiver.isWellFormed(Arrays.asList("")));
+    }
+}
@@ -0,0 +1,229 @@
+package pl.polidea.instrumentation.host;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import pl.polidea.instrumentation.host.ReportMerger.Report;
+
+/**
+ * Merges small reports of three devices: one with a report without device
+ * properties next to one with them, one with a gzipped report and one with a
+ * zip of reports without properties, named after its directory.
+ */
+public class ReportMergerTest extends TestCase {
+
+    private static final String DEVICE_ONE = "Acme One API 19 s1";
+    private static final String DEVICE_TWO = "Acme Two API 21 s2";
+    private static final String DEVICE_EMULATOR = "emulator-5556";
+
+    private File root;
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("reports", "");
+        assertTrue(root.delete() && root.mkdir());
+        output = new File(root, "merged");
+        final File one = new File(root, "one");
+        final File two = new File(root, "two");
+        final File emulator = new File(root, DEVICE_EMULATOR);
+        assertTrue(one.mkdir() && two.mkdir() && emulator.mkdir());
+        write(new File(one, "a-TEST.xml"), report(properties("One", "19", "s1"),
+                testCase("pl.a.SampleTest", "testPass", "0.500", ""),
+                testCase("pl.a.SampleTest", "testError", "1.000", "<error>java.lang.Error</error>")));
+        write(new File(one, "b-TEST.xml"), report("",
+                testCase("pl.b.OtherTest", "testFlaky", "0.250", "<flakyFailure>first</flakyFailure>"),
+                testCase("pl.b.OtherTest", "testFailure", "0.125", "<failure>expected</failure>")));
+        final OutputStream gz = new GZIPOutputStream(new FileOutputStream(new File(two, "c-TEST.xml.gz")));
+        try {
+            gz.write(report(properties("Two", "21", "s2"), testCase("pl.a.SampleTest", "testPass", "1.500", ""))
+                    .getBytes("UTF-8"));
+        } finally {
+            gz.close();
+        }
+        final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(emulator, "results.zip")));
+        try {
+            zip.putNextEntry(new ZipEntry("one-TEST.xml"));
+            zip.write(report("", testCase("pl.a.SampleTest", "testPass", "2.500", "")).getBytes("UTF-8"));
+            zip.putNextEntry(new ZipEntry("two-TEST.xml"));
+            zip.write(report("", testCase("pl.b.OtherTest", "testFlaky", "0.750", "")).getBytes("UTF-8"));
+            zip.putNextEntry(new ZipEntry("notes.txt"));
+            zip.write("not a report".getBytes("UTF-8"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(root);
+    }
+
+    public void testFindsXmlGzipAndZippedReports() throws Exception {
+        final List<Report> reports = findReports();
+        final List<String> found = new ArrayList<String>();
+        for (final Report report : reports) {
+            found.add(report.entry == null ? report.file.getName() : report.file.getName() + "!" + report.entry);
+        }
+        assertEquals("[results.zip!one-TEST.xml, results.zip!two-TEST.xml, a-TEST.xml, b-TEST.xml, c-TEST.xml.gz]",
+                found.toString());
+    }
+
+    public void testGroupsReportsByDevice() throws Exception {
+        new ReportMerger(new ReportSummary(10)).merge(findReports(), output);
+
+        final Document one = parse(new File(output, "Acme_One_API_19_s1-TEST.xml"));
+        assertEquals(2, one.getElementsByTagName("testsuite").getLength());
+        // the report without properties belongs to the device of its directory
+        assertEquals(4, one.getElementsByTagName("testcase").getLength());
+        assertHostname(one, DEVICE_ONE);
+        final Document two = parse(new File(output, "Acme_Two_API_21_s2-TEST.xml"));
+        assertEquals(1, two.getElementsByTagName("testcase").getLength());
+        assertHostname(two, DEVICE_TWO);
+        final Document emulator = parse(new File(output, DEVICE_EMULATOR + "-TEST.xml"));
+        assertEquals(2, emulator.getElementsByTagName("testsuite").getLength());
+        assertEquals(2, emulator.getElementsByTagName("testcase").getLength());
+        assertHostname(emulator, DEVICE_EMULATOR);
+        assertEquals(3, output.list().length);
+    }
+
+    public void testMergedReportsAreNotMergedAgain() throws Exception {
+        new ReportMerger(new ReportSummary(10)).merge(findReports(), output);
+        final List<Report> reports = new ArrayList<Report>();
+        ReportMerger.findReports(root, output.getCanonicalFile(), reports);
+        assertEquals(5, reports.size());
+    }
+
+    public void testSummarizesDevices() throws Exception {
+        final ReportSummary summary = new ReportSummary(10);
+        new ReportMerger(summary).merge(findReports(), null);
+        final String printed = print(summary);
+
+        assertTrue(printed, printed.contains("  " + DEVICE_ONE
+                + ": 4 tests, 1 errors, 1 failures, 1 flaky in 1.875 s (2 files)\n"));
+        assertTrue(printed, printed.contains("  " + DEVICE_TWO
+                + ": 1 tests, 0 errors, 0 failures, 0 flaky in 1.500 s (1 files)\n"));
+        assertTrue(printed, printed.contains("  " + DEVICE_EMULATOR
+                + ": 2 tests, 0 errors, 0 failures, 0 flaky in 3.250 s (2 files)\n"));
+        assertTrue(printed, printed.contains("  all devices: 7 tests, 1 errors, 1 failures, 1 flaky in 6.625 s"
+                + " (5 files)\n"));
+        // population standard deviation of 0.5, 1.5 and 2.5 is sqrt(2/3)
+        assertTrue(printed, printed.contains("  0.816 s std dev  pl.a.SampleTest#testPass: mean 1.500 s over 3 runs,"
+                + " min 0.500 s on " + DEVICE_ONE + ", max 2.500 s on " + DEVICE_EMULATOR + "\n"));
+        assertTrue(printed, printed.contains("  5.500 s  pl.a (4 tests)\n"));
+        assertTrue(printed, printed.contains("  1.125 s  pl.b (3 tests)\n"));
+        assertFalse(summary.passed());
+    }
+
+    public void testDeviceNameSkipsUnknownProperties() {
+        final Map<String, String> properties = new HashMap<String, String>();
+        assertEquals("unknown", ReportMerger.getDeviceName(properties));
+        properties.put("android.Build.FINGERPRINT", "acme/one/one:4.4");
+        assertEquals("acme/one/one:4.4", ReportMerger.getDeviceName(properties));
+        properties.put("android.Build.MODEL", "One");
+        properties.put("android.Build.SERIAL", "unknown");
+        assertEquals("One", ReportMerger.getDeviceName(properties));
+    }
+
+    private List<Report> findReports() throws IOException {
+        final List<Report> reports = new ArrayList<Report>();
+        ReportMerger.findReports(root, null, reports);
+        return reports;
+    }
+
+    private static void assertHostname(final Document document, final String device) {
+        final NodeList suites = document.getElementsByTagName("testsuite");
+        for (int i = 0; i < suites.getLength(); i++) {
+            assertEquals(device, ((Element) suites.item(i)).getAttribute("hostname"));
+        }
+    }
+
+    private static String properties(final String model, final String sdk, final String serial) {
+        return "<properties>\n" + property("android.Build.MANUFACTURER", "Acme")
+                + property("android.Build.MODEL", model) + property("android.Build.VERSION.SDK_INT", sdk)
+                + property("android.Build.SERIAL", serial) + property("java.util.Locale.default", "en_US")
+                + "</properties>\n";
+    }
+
+    private static String property(final String name, final String value) {
+        return "<property name=\"" + name + "\" value=\"" + value + "\" />\n";
+    }
+
+    private static String testCase(final String className, final String name, final String time,
+            final String content) {
+        return "<testcase classname=\"" + className + "\" name=\"" + name + "\" time=\"" + time + "\">" + content
+                + "</testcase>\n";
+    }
+
+    /**
+     * Report with one test suite per class, in the layout the runner writes.
+     */
+    private static String report(final String properties, final String... testCases) {
+        final StringBuilder sb = new StringBuilder("<?xml version='1.0' encoding='UTF-8' ?>\n<testsuites>\n");
+        String className = null;
+        for (final String testCase : testCases) {
+            final int start = testCase.indexOf("classname=\"") + "classname=\"".length();
+            final String testClass = testCase.substring(start, testCase.indexOf('"', start));
+            if (!testClass.equals(className)) {
+                if (className != null) {
+                    sb.append(properties).append("</testsuite>\n");
+                }
+                className = testClass;
+                sb.append("<testsuite name=\"").append(className).append("\">\n");
+            }
+            sb.append(testCase);
+        }
+        sb.append(properties).append("</testsuite>\n</testsuites>\n");
+        return sb.toString();
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    static String print(final ReportSummary summary) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintStream printStream = new PrintStream(out, true, "UTF-8");
+        summary.print(printStream);
+        printStream.close();
+        return out.toString("UTF-8").replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private static Document parse(final File file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
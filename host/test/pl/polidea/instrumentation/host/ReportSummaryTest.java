@@ -0,0 +1,74 @@
+package pl.polidea.instrumentation.host;
+
+import junit.framework.TestCase;
+
+import pl.polidea.instrumentation.host.ReportSummary.TestStats;
+
+/**
+ * Statistics of {@link ReportSummary} computed from test runs added directly.
+ */
+public class ReportSummaryTest extends TestCase {
+
+    private static final double DELTA = 1e-9;
+
+    public void testStandardDeviationOfSingleRunIsZero() {
+        final TestStats stats = new TestStats("pl.Sample", "test");
+        stats.add("a", 5);
+        assertEquals(0, stats.standardDeviation(), DELTA);
+    }
+
+    public void testStandardDeviationOverDevices() {
+        final TestStats stats = new TestStats("pl.Sample", "test");
+        for (final double time : new double[] { 2, 4, 4, 4, 5, 5, 7, 9 }) {
+            stats.add("device" + time, time);
+        }
+        assertEquals(8, stats.count);
+        assertEquals(5, stats.mean, DELTA);
+        assertEquals(2, stats.standardDeviation(), DELTA);
+        assertEquals(2, stats.min, DELTA);
+        assertEquals("device2.0", stats.minDevice);
+        assertEquals(9, stats.max, DELTA);
+        assertEquals("device9.0", stats.maxDevice);
+    }
+
+    public void testStandardDeviationOfLargeTimesIsStable() {
+        // sum of squares minus square of sum loses all digits here
+        final TestStats stats = new TestStats("pl.Sample", "test");
+        for (final double time : new double[] { 4, 7, 13, 16 }) {
+            stats.add("a", 1e9 + time);
+        }
+        assertEquals(Math.sqrt(22.5), stats.standardDeviation(), 1e-6);
+    }
+
+    public void testCountsFlakyTestsAndFailuresPerDevice() throws Exception {
+        final ReportSummary summary = new ReportSummary(2);
+        summary.addFile("a");
+        summary.addTest("a", "pl", "pl.Sample", "testOne", 1, false, false, true);
+        summary.addTest("a", "pl", "pl.Sample", "testTwo", 2, false, false, true);
+        summary.addFile("b");
+        summary.addTest("b", "pl", "pl.Sample", "testOne", 3, false, false, false);
+        assertTrue(summary.passed());
+        summary.addTest("b", "pl", "pl.Sample", "testTwo", 4, true, false, false);
+        assertFalse(summary.passed());
+
+        final String printed = ReportMergerTest.print(summary);
+        assertTrue(printed, printed.contains("  a: 2 tests, 0 errors, 0 failures, 2 flaky in 3.000 s (1 files)\n"));
+        assertTrue(printed, printed.contains("  b: 2 tests, 1 errors, 0 failures, 0 flaky in 7.000 s (1 files)\n"));
+        assertTrue(printed, printed.contains("  all devices: 4 tests, 1 errors, 0 failures, 2 flaky in 10.000 s"));
+    }
+
+    public void testListsOnlyTheSlowestRuns() throws Exception {
+        final ReportSummary summary = new ReportSummary(2);
+        summary.addTest("a", "pl", "pl.Sample", "testOne", 1, false, false, false);
+        summary.addTest("a", "pl", "pl.Sample", "testTwo", 3, false, false, false);
+        summary.addTest("b", "pl", "pl.Sample", "testOne", 2, false, false, false);
+
+        final String printed = ReportMergerTest.print(summary);
+        assertTrue(printed, printed.contains("Slowest tests:\n  3.000 s  pl.Sample#testTwo on a\n"
+                + "  2.000 s  pl.Sample#testOne on b\n\n"));
+        // only testOne ran on more than one device
+        assertTrue(printed, printed.endsWith("Largest duration variance across devices:\n"
+                + "  0.500 s std dev  pl.Sample#testOne: mean 1.500 s over 2 runs, min 1.000 s on a,"
+                + " max 2.000 s on b\n"));
+    }
+}
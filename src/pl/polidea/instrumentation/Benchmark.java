@@ -0,0 +1,37 @@
+package pl.polidea.instrumentation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test method that measures performance. When the runner is given
+ * junitBenchmark true, such a test is run repeatedly: first the warmup
+ * iterations, then the measured ones, each with its own setUp() and
+ * tearDown(). Only the test method itself is timed. Statistics of the
+ * measured iterations are written as properties of the test case. Without
+ * junitBenchmark the test runs once, like any other.
+ *
+ * The numbers of iterations default to junitBenchmarkWarmup and
+ * junitBenchmarkIterations arguments.
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Benchmark {
+
+    /**
+     * Number of iterations run before the measured ones, negative to use
+     * junitBenchmarkWarmup.
+     */
+    int warmup() default -1;
+
+    /**
+     * Number of measured iterations, negative to use
+     * junitBenchmarkIterations.
+     */
+    int iterations() default -1;
+}
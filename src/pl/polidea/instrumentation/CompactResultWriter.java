@@ -0,0 +1,237 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+import android.util.Log;
+
+/**
+ * Writes the result of each test as a single compact record, for tools that
+ * need names, statuses and durations without parsing the XML. One file is
+ * written for the whole run, in one of the formats:
+ *
+ * <ul>
+ * <li>ndjson - {@link #NDJSON_FILE_NAME}, one JSON object per line:
+ *
+ * <pre>
+ * {"class":"com.example.FooTest","name":"testBar","status":"failure","time":0.012345,"message":"..."}
+ * </pre>
+ *
+ * status is "pass", "error" or "failure", time is in seconds and message -
+ * the exception line of the error or failure - is present only for tests that
+ * did not pass. Tests run again because of junitRetries get a record for each
+ * run, the later ones with "attempt" - 2 for the first retry and so on</li>
+ * <li>binary - {@link #BINARY_FILE_NAME}, the bytes 'P', 'T', 'R' and format
+ * version 1 followed by length-prefixed records:
+ *
+ * <pre>
+ * int length of the rest of the record
+ * byte status (0 - pass, 1 - error, 2 - failure), long time in ns
+ * strings class name, test name and message
+ * int attempt (1 for the first run of the test)
+ * </pre>
+ *
+ * Strings are written as int length followed by UTF-8 bytes, length -1 stands
+ * for no string. Readers can skip records (or fields added in later versions)
+ * using the length.</li>
+ * </ul>
+ *
+ * Records are written in the order tests finish. The file goes through
+ * {@link ReportOutput}, so it is compressed like the report files.
+ *
+ */
+class CompactResultWriter {
+
+    static final String FORMAT_NONE = "none";
+    static final String FORMAT_NDJSON = "ndjson";
+    static final String FORMAT_BINARY = "binary";
+
+    static final String NDJSON_FILE_NAME = "TEST-RESULTS.ndjson";
+    static final String BINARY_FILE_NAME = "TEST-RESULTS.bin";
+
+    private static final String TAG = CompactResultWriter.class.getSimpleName();
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] BINARY_HEADER = { 'P', 'T', 'R', 1 };
+    private static final int STATUS_PASS = 0;
+    private static final int STATUS_ERROR = 1;
+    private static final int STATUS_FAILURE = 2;
+    private static final String[] STATUS_NAMES = { "pass", "error", "failure" };
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String format;
+    private final StringBuilder line = new StringBuilder();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private DataOutputStream out;
+    private int written;
+
+    CompactResultWriter(final String format) {
+        this.format = format;
+    }
+
+    static String getFileName(final String format) {
+        return FORMAT_BINARY.equals(format) ? BINARY_FILE_NAME : NDJSON_FILE_NAME;
+    }
+
+    synchronized void open(final ReportOutput reportOutput, final File directory) throws IOException {
+        final File f = new File(directory, getFileName(format));
+        Log.d(TAG, "Writing " + format + " results to " + f);
+        out = new DataOutputStream(new BufferedOutputStream(reportOutput.open(f), BUFFER_SIZE));
+        if (FORMAT_BINARY.equals(format)) {
+            out.write(BINARY_HEADER);
+        }
+    }
+
+    synchronized void write(final TestInfo testInfo) {
+        if (out == null) {
+            return;
+        }
+        final int status;
+        final Throwable t;
+        if (testInfo.error != null) {
+            status = STATUS_ERROR;
+            t = testInfo.error;
+        } else if (testInfo.failure != null) {
+            status = STATUS_FAILURE;
+            t = testInfo.failure;
+        } else {
+            status = STATUS_PASS;
+            t = null;
+        }
+        final String className = testInfo.testCase.getName();
+        final String message = t == null ? null : t.toString();
+        final int attempt = testInfo.attempts == null ? 1 : testInfo.attempts.size() + 1;
+        try {
+            if (FORMAT_BINARY.equals(format)) {
+                writeBinary(status, testInfo.timeNanos, className, testInfo.name, message, attempt);
+            } else {
+                writeJson(status, testInfo.timeNanos, className, testInfo.name, message, attempt);
+            }
+            written++;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error: " + e, e);
+        }
+    }
+
+    synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error: " + e, e);
+        }
+        out = null;
+        Log.d(TAG, "Written " + written + " " + format + " records");
+    }
+
+    private void writeBinary(final int status, final long timeNanos, final String className, final String name,
+            final String message, final int attempt) throws IOException {
+        record.reset();
+        recordOut.writeByte(status);
+        recordOut.writeLong(timeNanos);
+        writeString(recordOut, className);
+        writeString(recordOut, name);
+        writeString(recordOut, message);
+        recordOut.writeInt(attempt);
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeJson(final int status, final long timeNanos, final String className, final String name,
+            final String message, final int attempt) throws IOException {
+        line.setLength(0);
+        line.append("{\"class\":");
+        appendJsonString(line, className);
+        line.append(",\"name\":");
+        appendJsonString(line, name);
+        line.append(",\"status\":\"").append(STATUS_NAMES[status]).append('"');
+        line.append(",\"time\":").append(PolideaInstrumentationTestRunner.formatTime(timeNanos));
+        if (message != null) {
+            line.append(",\"message\":");
+            appendJsonString(line, message);
+        }
+        if (attempt > 1) {
+            line.append(",\"attempt\":").append(attempt);
+        }
+        line.append("}\n");
+        writeUtf8(out, line);
+    }
+
+    private static void appendJsonString(final StringBuilder sb, final String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < ' ') {
+                    sb.append("\\u00").append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Encodes the characters directly into the stream, without creating a
+     * String and its byte array for each line.
+     */
+    private static void writeUtf8(final OutputStream out, final CharSequence s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | c >> 6);
+                out.write(0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | codePoint >> 18);
+                out.write(0x80 | codePoint >> 12 & 0x3f);
+                out.write(0x80 | codePoint >> 6 & 0x3f);
+                out.write(0x80 | codePoint & 0x3f);
+            } else if (c >= '\ud800' && c <= '\udfff') {
+                // unpaired surrogate, Character.isSurrogate() needs API 19
+                out.write('?');
+            } else {
+                out.write(0xe0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3f);
+                out.write(0x80 | c & 0x3f);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package pl.polidea.instrumentation;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+/**
+ * Immutable snapshot of the device and environment properties written to each
+ * test suite. The values do not change during the run, so they are captured
+ * once and kept already encoded as XML fragment that can be written to the
+ * output verbatim.
+ * 
+ */
+class DeviceProperties {
+
+    private final Map<String, String> properties;
+    private final String xmlFragment;
+    private final String runXmlFragment;
+
+    private DeviceProperties(final Map<String, String> properties, final Map<String, String> runProperties) {
+        this.properties = Collections.unmodifiableMap(properties);
+        this.xmlFragment = encode(properties);
+        this.runXmlFragment = encode(runProperties);
+    }
+
+    /**
+     * Captures properties of the device the tests are run on.
+     * 
+     * @param context
+     *            context used to read configuration and display metrics
+     * @param runProperties
+     *            properties of the run (like shard) added after device
+     *            properties
+     * @return the snapshot
+     */
+    static DeviceProperties capture(final Context context, final Map<String, String> runProperties) {
+        final Map<String, String> p = new LinkedHashMap<String, String>();
+        p.put("android.Build.BOARD", Build.BOARD);
+        p.put("android.Build.BRAND", Build.BRAND);
+        p.put("android.Build.CPU_ABI", Build.CPU_ABI);
+        p.put("android.Build.DEVICE", Build.DEVICE);
+        p.put("android.Build.DISPLAY", Build.DISPLAY);
+        p.put("android.Build.FINGERPRINT", Build.FINGERPRINT);
+        p.put("android.Build.HOST", Build.HOST);
+        p.put("android.Build.ID", Build.ID);
+        p.put("android.Build.MANUFACTURER", Build.MANUFACTURER);
+        p.put("android.Build.MODEL", Build.MODEL);
+        p.put("android.Build.PRODUCT", Build.PRODUCT);
+        p.put("android.Build.TAGS", Build.TAGS);
+        p.put("android.Build.TYPE", Build.TYPE);
+        p.put("android.Build.USER", Build.USER);
+        if (Build.VERSION.SDK_INT >= 8) {
+            p.put("android.Build.BOOTLOADER", Build.BOOTLOADER);
+            p.put("android.Build.CPU_ABI2", Build.CPU_ABI2);
+            p.put("android.Build.HARDWARE", Build.HARDWARE);
+        }
+        if (Build.VERSION.SDK_INT >= 9) {
+            p.put("android.Build.SERIAL", Build.SERIAL);
+        }
+        p.put("android.Build.VERSION.CODENAME", Build.VERSION.CODENAME);
+        p.put("android.Build.VERSION.INCREMENTAL", Build.VERSION.INCREMENTAL);
+        p.put("android.Build.VERSION.RELEASE", Build.VERSION.RELEASE);
+        p.put("android.Build.VERSION.SDK_INT", Integer.toString(Build.VERSION.SDK_INT));
+        final Configuration configuration = context.getResources().getConfiguration();
+        p.put("android.Configuration.fontScale", Float.toString(configuration.fontScale));
+        p.put("android.Configuration.locale", String.valueOf(configuration.locale));
+        p.put("android.Configuration.orientation", translateOrientation(configuration.orientation));
+        p.put("android.Configuration.screenLayout.long", translateScreenLength(configuration.screenLayout));
+        p.put("android.Configuration.screenLayout.size", translateScreenSize(configuration.screenLayout));
+        if (Build.VERSION.SDK_INT >= 13) {
+            p.put("android.Configuration.screenHeightDp", Integer.toString(configuration.screenHeightDp));
+            p.put("android.Configuration.screenWidthDp", Integer.toString(configuration.screenWidthDp));
+            p.put("android.Configuration.smallestScreenWidthDp", Integer.toString(configuration.smallestScreenWidthDp));
+        }
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        p.put("android.DisplayMetrics.density", Float.toString(metrics.density));
+        p.put("android.DisplayMetrics.densityDpi", translateDensityDpi(metrics.densityDpi));
+        p.put("android.DisplayMetrics.heightPixels", Integer.toString(metrics.heightPixels));
+        p.put("android.DisplayMetrics.scaledDensity", Float.toString(metrics.scaledDensity));
+        p.put("android.DisplayMetrics.widthPixels", Integer.toString(metrics.widthPixels));
+        p.put("android.DisplayMetrics.xdpi", Float.toString(metrics.xdpi));
+        p.put("android.DisplayMetrics.ydpi", Float.toString(metrics.ydpi));
+        p.put("java.util.Locale.default", String.valueOf(Locale.getDefault()));
+        p.putAll(runProperties);
+        return new DeviceProperties(p, runProperties);
+    }
+
+    Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return complete, escaped &lt;properties&gt; element
+     */
+    String getXmlFragment() {
+        return xmlFragment;
+    }
+
+    /**
+     * @return complete, escaped &lt;properties&gt; element with only the
+     *         properties of the run, for suites written without the device
+     *         properties
+     */
+    String getRunXmlFragment() {
+        return runXmlFragment;
+    }
+
+    private static String encode(final Map<String, String> properties) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("\n<properties>");
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            sb.append("\n<property name=\"");
+            appendEscaped(sb, entry.getKey());
+            sb.append("\" value=\"");
+            appendEscaped(sb, entry.getValue());
+            sb.append("\" />");
+        }
+        sb.append("\n</properties>");
+        return sb.toString();
+    }
+
+    static void appendEscaped(final StringBuilder sb, final String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                sb.append("&amp;");
+                break;
+            case '<':
+                sb.append("&lt;");
+                break;
+            case '>':
+                sb.append("&gt;");
+                break;
+            case '"':
+                sb.append("&quot;");
+                break;
+            case '\n':
+            case '\r':
+            case '\t':
+                sb.append("&#").append((int) c).append(';');
+                break;
+            default:
+                // other control characters are not allowed in XML at all
+                sb.append(c < ' ' ? '?' : c);
+            }
+        }
+    }
+
+    private static String translateDensityDpi(final int densityDpi) {
+        switch (densityDpi) {
+        case DisplayMetrics.DENSITY_XXHIGH:
+            return "xxhdpi";
+        case DisplayMetrics.DENSITY_XHIGH:
+            return "xhdpi";
+        case DisplayMetrics.DENSITY_HIGH:
+            return "hdpi";
+        case DisplayMetrics.DENSITY_TV:
+            return "tvdpi";
+        case DisplayMetrics.DENSITY_MEDIUM:
+            return "mdpi";
+        case DisplayMetrics.DENSITY_LOW:
+            return "ldpi";
+        }
+        return Integer.toString(densityDpi);
+    }
+
+    private static String translateScreenLength(final int screenLayout) {
+        switch (screenLayout & Configuration.SCREENLAYOUT_LONG_MASK) {
+        case Configuration.SCREENLAYOUT_LONG_YES:
+            return "long";
+        case Configuration.SCREENLAYOUT_LONG_NO:
+            return "notlong";
+        default:
+            return "undefined";
+        }
+    }
+
+    private static String translateScreenSize(final int screenLayout) {
+        switch (screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK) {
+        case Configuration.SCREENLAYOUT_SIZE_XLARGE:
+            return "xlarge";
+        case Configuration.SCREENLAYOUT_SIZE_LARGE:
+            return "large";
+        case Configuration.SCREENLAYOUT_SIZE_NORMAL:
+            return "normal";
+        case Configuration.SCREENLAYOUT_SIZE_SMALL:
+            return "small";
+        default:
+            return "undefined";
+        }
+    }
+
+    private static String translateOrientation(final int orientation) {
+        switch (orientation) {
+        case Configuration.ORIENTATION_PORTRAIT:
+            return "portrait";
+        case Configuration.ORIENTATION_LANDSCAPE:
+            return "landscape";
+        default:
+            return "undefined";
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Durations of tests from previous runs kept on the device. The file stores
+ * for each test (keyed by "&lt;class name&gt;#&lt;test name&gt;") at most the
+ * configured number of the most recent durations in ms:
+ * 
+ * <pre>
+ * int magic, int version, int number of tests
+ * for each test: UTF key, byte number of runs since the test last ran,
+ *                byte number of durations, int durations (oldest first)
+ * </pre>
+ * 
+ * Tests that were not run in the current run keep their history (the run
+ * might have been filtered or sharded), unless they have not run in
+ * {@link #MAX_MISSED_RUNS} runs - they were most likely renamed or deleted.
+ * 
+ */
+class DurationHistory {
+
+    private static final String TAG = DurationHistory.class.getSimpleName();
+    private static final int MAGIC = 0x504a4448;
+    private static final int VERSION = 1;
+    /**
+     * Number of runs after which history of a test that did not run is
+     * dropped.
+     */
+    static final int MAX_MISSED_RUNS = 20;
+    /**
+     * Minimum number of past durations needed to detect a regression.
+     */
+    private static final int MIN_SAMPLES = 3;
+    /**
+     * Differences shorter than that (in ms) are never treated as regression.
+     */
+    private static final int MIN_REGRESSION_TIME = 10;
+
+    /**
+     * Test that took longer than expected from its history.
+     */
+    static class Regression {
+        final String className;
+        final String name;
+        final long time;
+        final long baseline;
+        final int samples;
+
+        Regression(final String className, final String name, final long time, final long baseline, final int samples) {
+            this.className = className;
+            this.name = name;
+            this.time = time;
+            this.baseline = baseline;
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * History of a single test.
+     */
+    private static class Entry {
+        int[] durations;
+        int missedRuns;
+
+        Entry(final int[] durations, final int missedRuns) {
+            this.durations = durations;
+            this.missedRuns = missedRuns;
+        }
+    }
+
+    private final File file;
+    private final int size;
+    private final Map<String, Entry> history;
+    private final Map<String, Long> current = new LinkedHashMap<String, Long>();
+
+    private DurationHistory(final File file, final int size, final Map<String, Entry> history) {
+        this.file = file;
+        this.size = size;
+        this.history = history;
+    }
+
+    /**
+     * Reads the history. Missing or unreadable file results in empty history.
+     * 
+     * @param file
+     *            history file
+     * @param size
+     *            maximum number of durations kept per test
+     * @return the history
+     */
+    static DurationHistory load(final File file, final int size) {
+        final Map<String, Entry> history = new HashMap<String, Entry>();
+        if (file.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() != MAGIC) {
+                        throw new IOException("Unknown format");
+                    }
+                    final int version = in.readInt();
+                    if (version != VERSION) {
+                        throw new IOException("Unknown version " + version);
+                    }
+                    final int tests = in.readInt();
+                    for (int i = 0; i < tests; i++) {
+                        final String key = in.readUTF();
+                        final int missedRuns = in.readUnsignedByte();
+                        final int[] durations = new int[in.readUnsignedByte()];
+                        for (int j = 0; j < durations.length; j++) {
+                            durations[j] = in.readInt();
+                        }
+                        history.put(key, new Entry(durations, missedRuns));
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Error reading history from " + file + ", starting a new one: " + e, e);
+                history.clear();
+            }
+        }
+        Log.d(TAG, "Read history of " + history.size() + " tests from " + file);
+        return new DurationHistory(file, size, history);
+    }
+
+    synchronized void record(final String className, final String name, final long time) {
+        current.put(getKey(className, name), time);
+    }
+
+    /**
+     * Finds tests of the current run that took longer than the given ratio of
+     * the given percentile of their past durations.
+     * 
+     * @param ratio
+     *            allowed ratio of current duration to the past one
+     * @param percentile
+     *            percentile (0-100) of the past durations compared with
+     * @return regressed tests
+     */
+    synchronized List<Regression> findRegressions(final double ratio, final int percentile) {
+        final List<Regression> regressions = new ArrayList<Regression>();
+        for (final Map.Entry<String, Long> entry : current.entrySet()) {
+            final Entry past = history.get(entry.getKey());
+            if (past == null || past.durations.length < MIN_SAMPLES) {
+                continue;
+            }
+            final int[] durations = past.durations;
+            final int[] sorted = durations.clone();
+            Arrays.sort(sorted);
+            final int index = Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(percentile / 100.0
+                    * sorted.length) - 1));
+            final long baseline = sorted[index];
+            final long time = entry.getValue();
+            if (time - baseline >= MIN_REGRESSION_TIME && time > baseline * ratio) {
+                final String key = entry.getKey();
+                final int separator = key.lastIndexOf('#');
+                regressions.add(new Regression(key.substring(0, separator), key.substring(separator + 1), time,
+                        baseline, durations.length));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Adds durations of the current run to the history, drops tests that have
+     * not run for too long and writes it.
+     */
+    synchronized void save() {
+        for (final Iterator<Map.Entry<String, Entry>> i = history.entrySet().iterator(); i.hasNext();) {
+            final Map.Entry<String, Entry> entry = i.next();
+            if (!current.containsKey(entry.getKey()) && ++entry.getValue().missedRuns >= MAX_MISSED_RUNS) {
+                i.remove();
+            }
+        }
+        for (final Map.Entry<String, Long> entry : current.entrySet()) {
+            final Entry past = history.get(entry.getKey());
+            final int[] durations = past == null ? null : past.durations;
+            final int kept = durations == null ? 0 : Math.min(durations.length, size - 1);
+            final int[] updated = new int[kept + 1];
+            if (kept > 0) {
+                System.arraycopy(durations, durations.length - kept, updated, 0, kept);
+            }
+            updated[kept] = (int) Math.min(Integer.MAX_VALUE, entry.getValue());
+            history.put(entry.getKey(), new Entry(updated, 0));
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(history.size());
+                for (final Map.Entry<String, Entry> entry : history.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeByte(entry.getValue().missedRuns);
+                    out.writeByte(entry.getValue().durations.length);
+                    for (final int duration : entry.getValue().durations) {
+                        out.writeInt(duration);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            Log.d(TAG, "Written history of " + history.size() + " tests to " + file);
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing history to " + file + ": " + e, e);
+        }
+    }
+
+    private static String getKey(final String className, final String name) {
+        return className + "#" + name;
+    }
+}
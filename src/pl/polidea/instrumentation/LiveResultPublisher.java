@@ -0,0 +1,339 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Publishes results to the host as soon as each test completes, so that the
+ * host does not have to wait for the end of the run and pull the XML files.
+ * The results are sent in one of the modes:
+ *
+ * <ul>
+ * <li>status - each record is sent with
+ * {@link Instrumentation#sendStatus(int, Bundle)} under the {@link #STATUS_KEY}
+ * key with {@link #STATUS_CODE} result code. It shows up in the output of
+ * "am instrument -r"</li>
+ * <li>socket - records are written to a TCP connection accepted on the
+ * loopback interface of the device. The host reaches it with
+ * "adb forward tcp:&lt;port&gt; tcp:&lt;port&gt;". Records published before
+ * the host connects are kept and sent after it connects, as long as it
+ * connects before the run finishes. At most {@link #MAX_QUEUED_RECORDS}
+ * records are kept, the oldest are dropped when the host does not keep up or
+ * does not connect at all</li>
+ * </ul>
+ *
+ * Every record is a single line of tab separated fields. Backslash, tab, new
+ * line and carriage return in fields are escaped as \\, \t, \n and \r:
+ *
+ * <pre>
+ * RUN   &lt;number of tests&gt;
+ * START &lt;class name&gt; &lt;test name&gt;
+ * END   &lt;class name&gt; &lt;test name&gt; &lt;PASS|ERROR|FAILURE&gt; &lt;time in ns&gt; [&lt;stack trace&gt;]
+ * DONE  &lt;tests&gt; &lt;errors&gt; &lt;failures&gt;
+ * </pre>
+ *
+ * A retried test is published again with the same names, its END record
+ * replaces the result of the previous attempt. The summary counts the last
+ * attempt of each test.
+ *
+ */
+class LiveResultPublisher {
+
+    static final String LIVE_OFF = "off";
+    static final String LIVE_STATUS = "status";
+    static final String LIVE_SOCKET = "socket";
+
+    static final String STATUS_KEY = "junitLive";
+    static final int STATUS_CODE = 10;
+
+    static final String RECORD_RUN = "RUN";
+    static final String RECORD_START = "START";
+    static final String RECORD_END = "END";
+    static final String RECORD_DONE = "DONE";
+    static final String RESULT_PASS = "PASS";
+    static final String RESULT_ERROR = "ERROR";
+    static final String RESULT_FAILURE = "FAILURE";
+
+    private static final String TAG = LiveResultPublisher.class.getSimpleName();
+
+    /**
+     * How long (in ms) the accepting thread blocks before it checks whether
+     * the publisher was closed.
+     */
+    private static final int ACCEPT_TIMEOUT = 1000;
+    /**
+     * How long (in ms) {@link #close()} waits for the connected host to
+     * receive the remaining records.
+     */
+    private static final int CLOSE_TIMEOUT = 10000;
+    /**
+     * Maximum number of records waiting for the host, so that memory does not
+     * grow with the run when the host does not connect.
+     */
+    static final int MAX_QUEUED_RECORDS = 1000;
+    private static final String END_OF_STREAM = new String("");
+
+    private final Instrumentation instrumentation;
+    private final String mode;
+    private final int port;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(MAX_QUEUED_RECORDS);
+    private final AtomicInteger droppedRecords = new AtomicInteger();
+    /**
+     * Last result of each test, keyed by "&lt;class name&gt;#&lt;test name&gt;".
+     */
+    private final Map<String, String> results = new HashMap<String, String>();
+    private Thread senderThread;
+    private volatile boolean closed;
+    /**
+     * Both set under the lock of the publisher, so that the host cannot
+     * connect after {@link #close()} decided there is nobody to wait for.
+     */
+    private boolean connected;
+    private boolean abandoned;
+    private int tests;
+    private int errors;
+    private int failures;
+
+    LiveResultPublisher(final Instrumentation instrumentation, final String mode, final int port) {
+        this.instrumentation = instrumentation;
+        this.mode = mode;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening for the host connection in socket mode.
+     */
+    void start() {
+        if (!LIVE_SOCKET.equals(mode)) {
+            return;
+        }
+        senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, TAG);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    void runStarted(final int testCount) {
+        publish(RECORD_RUN, Integer.toString(testCount));
+    }
+
+    void testStarted(final String className, final String name) {
+        publish(RECORD_START, className, name);
+    }
+
+    void testFinished(final TestInfo testInfo) {
+        final String className = testInfo.testCase.getName();
+        final String time = Long.toString(testInfo.timeNanos);
+        final String result = testInfo.error != null ? RESULT_ERROR : testInfo.failure != null ? RESULT_FAILURE
+                : RESULT_PASS;
+        synchronized (this) {
+            final String previous = results.put(className + "#" + testInfo.name, result);
+            if (previous == null) {
+                tests++;
+            } else {
+                count(previous, -1);
+            }
+            count(result, 1);
+        }
+        if (testInfo.error != null) {
+            publish(RECORD_END, className, testInfo.name, result, time, getStackTrace(testInfo.error));
+        } else if (testInfo.failure != null) {
+            publish(RECORD_END, className, testInfo.name, result, time, getStackTrace(testInfo.failure));
+        } else {
+            publish(RECORD_END, className, testInfo.name, result, time);
+        }
+    }
+
+    private void count(final String result, final int delta) {
+        if (RESULT_ERROR.equals(result)) {
+            errors += delta;
+        } else if (RESULT_FAILURE.equals(result)) {
+            failures += delta;
+        }
+    }
+
+    /**
+     * Publishes the summary and, in socket mode, waits a while for the
+     * remaining records to be sent if the host is connected. A host that is
+     * not connected gets one more accept timeout to connect.
+     */
+    void close() {
+        synchronized (this) {
+            publish(RECORD_DONE, Integer.toString(tests), Integer.toString(errors), Integer.toString(failures));
+        }
+        if (senderThread == null) {
+            return;
+        }
+        enqueue(END_OF_STREAM);
+        if (droppedRecords.get() > 0) {
+            Log.w(TAG, "Dropped " + droppedRecords.get() + " oldest live results waiting for the host");
+        }
+        // the sender stops at the end of stream, or at the next accept timeout
+        // if nobody connects
+        closed = true;
+        try {
+            senderThread.join(ACCEPT_TIMEOUT);
+            synchronized (this) {
+                if (!connected) {
+                    abandoned = true;
+                    queue.clear();
+                    Log.w(TAG, "Host never connected, live results were not sent");
+                    return;
+                }
+            }
+            senderThread.join(CLOSE_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (senderThread.isAlive()) {
+            Log.w(TAG, "Host did not receive all live results in " + CLOSE_TIMEOUT + " ms");
+        }
+    }
+
+    private void publish(final String... fields) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            appendEscaped(sb, fields[i]);
+        }
+        final String record = sb.toString();
+        if (LIVE_STATUS.equals(mode)) {
+            final Bundle bundle = new Bundle();
+            bundle.putString(STATUS_KEY, record);
+            instrumentation.sendStatus(STATUS_CODE, bundle);
+        } else if (LIVE_SOCKET.equals(mode)) {
+            enqueue(record);
+        }
+    }
+
+    /**
+     * Queues the record for the sender, dropping the oldest ones when the
+     * queue is full.
+     */
+    private void enqueue(final String record) {
+        while (!queue.offer(record)) {
+            if (queue.poll() != null) {
+                droppedRecords.incrementAndGet();
+            }
+        }
+    }
+
+    private void send() {
+        try {
+            final Socket socket = accept();
+            if (socket == null) {
+                return;
+            }
+            try {
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                while (true) {
+                    String record = queue.poll();
+                    if (record == null) {
+                        // flush only when there is nothing more to send
+                        writer.flush();
+                        record = queue.poll(ACCEPT_TIMEOUT, TimeUnit.MILLISECONDS);
+                        if (record == null) {
+                            if (closed) {
+                                return;
+                            }
+                            continue;
+                        }
+                    }
+                    if (record == END_OF_STREAM) {
+                        writer.flush();
+                        return;
+                    }
+                    writer.write(record);
+                    writer.write('\n');
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error: " + e, e);
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "Interrupted while sending live results");
+        }
+    }
+
+    private Socket accept() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+            Log.d(TAG, "Waiting for host connection on port " + port);
+            while (!closed) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    synchronized (this) {
+                        if (abandoned) {
+                            socket.close();
+                            return null;
+                        }
+                        connected = true;
+                    }
+                    Log.d(TAG, "Host connected from " + socket.getInetAddress());
+                    return socket;
+                } catch (final SocketTimeoutException e) {
+                    // check whether we are closed and continue waiting
+                }
+            }
+            return null;
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private static String getStackTrace(final Throwable t) {
+        final StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw, true));
+        return sw.toString();
+    }
+
+    private static void appendEscaped(final StringBuilder sb, final String s) {
+        final String value = String.valueOf(s);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+}
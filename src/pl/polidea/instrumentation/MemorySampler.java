@@ -0,0 +1,97 @@
+package pl.polidea.instrumentation;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Samples memory usage of the process and allocations of the current thread.
+ * Samples are written into arrays provided by the caller, so sampling does
+ * not allocate (except for reading GC count on API 23+). It does not force
+ * garbage collection, so heap usage includes garbage not collected yet. The
+ * GC count of API 23+ is read reflectively, since the library is built
+ * against an older API level.
+ * 
+ */
+class MemorySampler {
+
+    static final int HEAP_USED = 0;
+    static final int NATIVE_HEAP = 1;
+    static final int ALLOC_COUNT = 2;
+    static final int ALLOC_SIZE = 3;
+    static final int GC_COUNT = 4;
+    static final int VALUES = 5;
+
+    private static final String TAG = MemorySampler.class.getSimpleName();
+    private static final int RUNTIME_STAT_MIN_SDK = 23;
+    private static final Object[] GC_COUNT_STAT = { "art.gc.gc-count" };
+    /**
+     * Debug.getRuntimeStat(String), null below API 23.
+     */
+    private static final Method GET_RUNTIME_STAT = findGetRuntimeStat();
+
+    private final Runtime runtime = Runtime.getRuntime();
+
+    /**
+     * Starts counting allocations. Should be called before the tests start.
+     */
+    @SuppressWarnings("deprecation")
+    void start() {
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    void stop() {
+        Debug.stopAllocCounting();
+    }
+
+    /**
+     * @param values
+     *            array of {@link #VALUES} receiving the sample
+     * @return time spent sampling in ns
+     */
+    @SuppressWarnings("deprecation")
+    long sample(final long[] values) {
+        final long start = System.nanoTime();
+        values[HEAP_USED] = runtime.totalMemory() - runtime.freeMemory();
+        values[NATIVE_HEAP] = Debug.getNativeHeapAllocatedSize();
+        values[ALLOC_COUNT] = Debug.getThreadAllocCount();
+        values[ALLOC_SIZE] = Debug.getThreadAllocSize();
+        values[GC_COUNT] = getGcCount();
+        return System.nanoTime() - start;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getGcCount() {
+        if (GET_RUNTIME_STAT != null) {
+            try {
+                final Object count = GET_RUNTIME_STAT.invoke(null, GC_COUNT_STAT);
+                if (count != null) {
+                    return Long.parseLong((String) count);
+                }
+            } catch (final NumberFormatException ignored) {
+                // fall back to global counter
+            } catch (final IllegalAccessException ignored) {
+                // fall back to global counter
+            } catch (final InvocationTargetException ignored) {
+                // fall back to global counter
+            }
+        }
+        return Debug.getGlobalGcInvocationCount();
+    }
+
+    private static Method findGetRuntimeStat() {
+        if (Build.VERSION.SDK_INT < RUNTIME_STAT_MIN_SDK) {
+            return null;
+        }
+        try {
+            return Debug.class.getMethod("getRuntimeStat", String.class);
+        } catch (final NoSuchMethodException e) {
+            Log.w(TAG, "Runtime stats not available, using global GC count: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Captures {@link System#out} and {@link System#err} (and optionally logcat
+ * lines of this process) into segments: the output of each test and the output
+ * written between tests. The streams are still written to the original
+ * streams as well.
+ *
+ * Each stream has a fixed ring buffer, reused for all segments, so quiet tests
+ * do not allocate anything. When a segment outgrows the buffer, the buffer is
+ * spilled to a temporary file and from then on is used to buffer writes to
+ * that file. If the file cannot be created, the oldest bytes are overwritten,
+ * keeping the end of the output. Memory used stays bounded no matter how much
+ * a test writes.
+ *
+ * Threads running tests in parallel attach buffers of their own (see
+ * {@link #attachThread()}), so their output is captured separately from the
+ * output of other threads. Logcat lines are routed to them by the id of the
+ * thread that logged them. Output of all other threads goes to the shared
+ * buffers.
+ *
+ */
+class OutputCapture {
+
+    private static final String TAG = OutputCapture.class.getSimpleName();
+
+    static final int OUT = 0;
+    static final int ERR = 1;
+
+    /**
+     * Tags that are not captured from logcat: standard streams (captured
+     * directly) and the logs of the runner itself.
+     */
+    private static final String[] LOGCAT_SILENCED_TAGS = { "System.out", "System.err", "TestRunner",
+            PolideaInstrumentationTestRunner.class.getSimpleName(), TestPacer.class.getSimpleName(),
+            MemorySampler.class.getSimpleName(), TAG };
+    /**
+     * First API level where logcat supports "-T" to skip lines logged before
+     * it started.
+     */
+    private static final int LOGCAT_TAIL_MIN_SDK = 21;
+
+    /**
+     * Output captured in a segment: either the text or the file it was spilled
+     * to.
+     */
+    static class Captured {
+        final String text;
+        final File file;
+
+        Captured(final String text, final File file) {
+            this.text = text;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Ring buffer of a single stream.
+     */
+    private static class Segment {
+        private final byte[] buffer;
+        private final File spillDirectory;
+        private int start;
+        private int count;
+        private long dropped;
+        private File spillFile;
+        private OutputStream spill;
+        private boolean spillFailed;
+
+        Segment(final int size, final File spillDirectory) {
+            this.buffer = new byte[size];
+            this.spillDirectory = spillDirectory;
+        }
+
+        synchronized void write(final int b) {
+            if (count == buffer.length) {
+                makeRoom(1);
+            }
+            buffer[(start + count) % buffer.length] = (byte) b;
+            count++;
+        }
+
+        synchronized void write(final byte[] b, final int offset, final int length) {
+            int off = offset;
+            int len = length;
+            while (len > 0) {
+                if (count == buffer.length) {
+                    makeRoom(len);
+                }
+                final int n = Math.min(len, buffer.length - count);
+                final int pos = (start + count) % buffer.length;
+                final int first = Math.min(n, buffer.length - pos);
+                System.arraycopy(b, off, buffer, pos, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void makeRoom(final int needed) {
+            if (spill == null && !spillFailed) {
+                try {
+                    spillFile = File.createTempFile("output", ".txt", spillDirectory);
+                    spill = new FileOutputStream(spillFile);
+                } catch (final IOException e) {
+                    Log.w(TAG, "Cannot spill captured output, keeping only its end: " + e);
+                    spillFailed = true;
+                }
+            }
+            if (spill != null) {
+                try {
+                    writeBuffer(spill);
+                    start = 0;
+                    count = 0;
+                    return;
+                } catch (final IOException e) {
+                    Log.w(TAG, "Error spilling captured output: " + e);
+                }
+            }
+            final int n = Math.min(needed, count);
+            start = (start + n) % buffer.length;
+            count -= n;
+            dropped += n;
+        }
+
+        private void writeBuffer(final OutputStream out) throws IOException {
+            final int first = Math.min(count, buffer.length - start);
+            out.write(buffer, start, first);
+            out.write(buffer, 0, count - first);
+        }
+
+        /**
+         * Ends the segment and resets the buffer for the next one.
+         *
+         * @return captured output or null if nothing was written
+         */
+        synchronized Captured take() {
+            if (count == 0 && spill == null && dropped == 0) {
+                return null;
+            }
+            Captured captured = null;
+            if (spill != null) {
+                try {
+                    writeBuffer(spill);
+                    spill.close();
+                    captured = new Captured(null, spillFile);
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error: " + e, e);
+                }
+            } else {
+                final byte[] bytes = new byte[count];
+                final int first = Math.min(count, buffer.length - start);
+                System.arraycopy(buffer, start, bytes, 0, first);
+                System.arraycopy(buffer, 0, bytes, first, count - first);
+                try {
+                    final String text = new String(bytes, "UTF-8");
+                    captured = new Captured(dropped > 0 ? "[" + dropped + " bytes dropped]\n" + text : text, null);
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error: " + e, e);
+                }
+            }
+            start = 0;
+            count = 0;
+            dropped = 0;
+            spill = null;
+            spillFile = null;
+            return captured;
+        }
+    }
+
+    /**
+     * Stream writing both to the original stream and the segment of the
+     * current thread.
+     */
+    private class CaptureStream extends OutputStream {
+        private final OutputStream original;
+        private final int stream;
+
+        CaptureStream(final OutputStream original, final int stream) {
+            this.original = original;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            original.write(b);
+            getSegment(stream).write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            original.write(b, off, len);
+            getSegment(stream).write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            original.flush();
+        }
+    }
+
+    private final Segment[] segments = new Segment[2];
+    private final ThreadLocal<Segment[]> threadSegments = new ThreadLocal<Segment[]>();
+    /**
+     * Buffers of the attached threads by their Linux thread id, as logged by
+     * logcat.
+     */
+    private final Map<String, Segment[]> tidSegments = new ConcurrentHashMap<String, Segment[]>();
+    private final int bufferSize;
+    private final File spillDirectory;
+    private final boolean captureLogcat;
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+    private java.lang.Process logcat;
+
+    /**
+     * @param bufferSize
+     *            size of the buffer of each stream in bytes
+     * @param spillDirectory
+     *            directory for output that does not fit the buffer
+     * @param captureLogcat
+     *            whether logcat lines of this process are captured as well
+     *            (together with {@link System#out})
+     */
+    OutputCapture(final int bufferSize, final File spillDirectory, final boolean captureLogcat) {
+        segments[OUT] = new Segment(bufferSize, spillDirectory);
+        segments[ERR] = new Segment(bufferSize, spillDirectory);
+        this.bufferSize = bufferSize;
+        this.spillDirectory = spillDirectory;
+        this.captureLogcat = captureLogcat;
+    }
+
+    void start() {
+        originalOut = System.out;
+        originalErr = System.err;
+        System.setOut(new PrintStream(new CaptureStream(originalOut, OUT), true));
+        System.setErr(new PrintStream(new CaptureStream(originalErr, ERR), true));
+        if (captureLogcat) {
+            startLogcat();
+        }
+    }
+
+    void stop() {
+        if (originalOut != null) {
+            System.out.flush();
+            System.err.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+        if (logcat != null) {
+            logcat.destroy();
+            logcat = null;
+        }
+    }
+
+    /**
+     * Ends the current segment of the stream.
+     *
+     * @param stream
+     *            {@link #OUT} or {@link #ERR}
+     * @return output captured since the previous call, null if none
+     */
+    Captured take(final int stream) {
+        if (stream == OUT) {
+            System.out.flush();
+        } else {
+            System.err.flush();
+        }
+        return getSegment(stream).take();
+    }
+
+    /**
+     * Gives the current thread buffers of its own, until
+     * {@link #detachThread()} is called.
+     */
+    void attachThread() {
+        final Segment[] own = new Segment[] { new Segment(bufferSize, spillDirectory),
+                new Segment(bufferSize, spillDirectory) };
+        threadSegments.set(own);
+        if (captureLogcat) {
+            tidSegments.put(Integer.toString(Process.myTid()), own);
+        }
+    }
+
+    /**
+     * Discards the output captured on the current thread since its last test
+     * and makes it use the shared buffers again.
+     */
+    void detachThread() {
+        final Segment[] own = threadSegments.get();
+        if (own == null) {
+            return;
+        }
+        threadSegments.remove();
+        if (captureLogcat) {
+            tidSegments.remove(Integer.toString(Process.myTid()));
+        }
+        for (final Segment segment : own) {
+            final Captured captured = segment.take();
+            if (captured != null && captured.file != null && !captured.file.delete()) {
+                Log.w(TAG, "Cannot delete " + captured.file);
+            }
+        }
+    }
+
+    private Segment getSegment(final int stream) {
+        final Segment[] own = threadSegments.get();
+        return own != null ? own[stream] : segments[stream];
+    }
+
+    private void startLogcat() {
+        final List<String> command = new ArrayList<String>();
+        command.add("logcat");
+        command.add("-v");
+        command.add("threadtime");
+        if (Build.VERSION.SDK_INT >= LOGCAT_TAIL_MIN_SDK) {
+            command.add("-T");
+            command.add("1");
+        }
+        for (final String tag : LOGCAT_SILENCED_TAGS) {
+            command.add(tag + ":S");
+        }
+        try {
+            logcat = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error starting logcat: " + e, e);
+            return;
+        }
+        final java.lang.Process process = logcat;
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLogcat(process);
+            }
+        }, TAG);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readLogcat(final java.lang.Process process) {
+        final String pid = Integer.toString(Process.myPid());
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // threadtime format: date time pid tid level tag: message
+                    final String[] fields = line.trim().split("\\s+", 5);
+                    if (fields.length == 5 && pid.equals(fields[2])) {
+                        final Segment[] own = tidSegments.get(fields[3]);
+                        final byte[] bytes = (line + "\n").getBytes("UTF-8");
+                        (own != null ? own[OUT] : segments[OUT]).write(bytes, 0, bytes.length);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            // logcat was destroyed
+        }
+    }
+}
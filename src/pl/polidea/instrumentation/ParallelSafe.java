@@ -0,0 +1,26 @@
+package pl.polidea.instrumentation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test case class whose tests can run at the same time as tests of
+ * other classes. Such classes are run on a pool of threads when the runner is
+ * given junitParallelThreads greater than 1. Tests of a single class still run
+ * one after another, on the same thread.
+ * 
+ * Only plain {@link junit.framework.TestCase} subclasses can run in parallel:
+ * AndroidTestCase and InstrumentationTestCase classes are always run on the
+ * instrumentation thread, even if marked.
+ * 
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ParallelSafe {
+}
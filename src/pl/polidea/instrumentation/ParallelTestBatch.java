@@ -0,0 +1,210 @@
+package pl.polidea.instrumentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+import android.util.Log;
+
+/**
+ * Runs whole test case classes on a bounded pool of threads. The batch is
+ * given to the instrumentation in place of the tests it contains and runs
+ * them all when the instrumentation runs it.
+ * 
+ * Each class is run on a single thread, one test after another, with a result
+ * of its own (see {@link #createResult()}) notifying the runner's listener as
+ * the tests run. Events of each finished test are then passed to the result of
+ * the whole run, one test at a time, because other listeners - like the one
+ * reporting instrumentation status - expect tests to run one after another.
+ * The runner's listener is removed from the result of the run while the batch
+ * runs, so that it is not notified twice.
+ * 
+ */
+class ParallelTestBatch extends TestCase {
+
+    private static final String TAG = ParallelTestBatch.class.getSimpleName();
+    private static final String NAME = "parallelTests";
+
+    /**
+     * Collects errors and failures of a test and passes them to the result of
+     * the run when the test ends.
+     */
+    private static class Replay implements TestListener {
+        private final TestResult result;
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+        private final List<AssertionFailedError> failures = new ArrayList<AssertionFailedError>();
+
+        Replay(final TestResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public void startTest(final Test test) {
+            errors.clear();
+            failures.clear();
+        }
+
+        @Override
+        public void addError(final Test test, final Throwable t) {
+            errors.add(t);
+        }
+
+        @Override
+        public void addFailure(final Test test, final AssertionFailedError f) {
+            failures.add(f);
+        }
+
+        @Override
+        public void endTest(final Test test) {
+            synchronized (result) {
+                result.startTest(test);
+                for (final Throwable t : errors) {
+                    result.addError(test, t);
+                }
+                for (final AssertionFailedError f : failures) {
+                    result.addFailure(test, f);
+                }
+                result.endTest(test);
+            }
+        }
+    }
+
+    private final List<List<Test>> classes;
+    private final int threads;
+    private final TestListener listener;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * @param classes
+     *            tests of each class, in the order they are run
+     * @param threads
+     *            maximum number of threads
+     * @param listener
+     *            listener notified on the threads running the tests, null if
+     *            none
+     */
+    ParallelTestBatch(final List<List<Test>> classes, final int threads, final TestListener listener) {
+        super(NAME);
+        this.classes = classes;
+        this.threads = threads;
+        this.listener = listener;
+    }
+
+    @Override
+    public int countTestCases() {
+        int count = 0;
+        for (final List<Test> classTests : classes) {
+            for (final Test test : classTests) {
+                count += test.countTestCases();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void run(final TestResult result) {
+        final long start = System.currentTimeMillis();
+        final int poolSize = Math.max(1, Math.min(threads, classes.size()));
+        Log.d(TAG, "Running " + classes.size() + " classes on " + poolSize + " threads");
+        if (listener != null) {
+            result.removeListener(listener);
+        }
+        try {
+            final ExecutorService executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            threadStarted();
+                            try {
+                                r.run();
+                            } finally {
+                                threadFinished();
+                            }
+                        }
+                    }, TAG + "-" + threadNumber.incrementAndGet());
+                }
+            });
+            for (final List<Test> classTests : classes) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runClass(classTests, result);
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Log.w(TAG, "Interrupted while running tests", e);
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            if (listener != null) {
+                result.addListener(listener);
+            }
+        }
+        Log.d(TAG, "Parallel tests finished in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void runClass(final List<Test> tests, final TestResult result) {
+        final TestResult classResult = createResult();
+        if (listener != null) {
+            classResult.addListener(listener);
+        }
+        classResult.addListener(new Replay(result));
+        try {
+            for (final Test test : tests) {
+                if (result.shouldStop()) {
+                    break;
+                }
+                test.run(classResult);
+            }
+        } finally {
+            classFinished();
+        }
+    }
+
+    /**
+     * Creates the result each class is run with. The runner overrides it to
+     * use its own result when phases are timed, benchmarked or the run fails
+     * fast.
+     */
+    @Override
+    protected TestResult createResult() {
+        return new TestResult();
+    }
+
+    /**
+     * Called on each thread of the pool before it runs any test.
+     */
+    protected void threadStarted() {
+        // nothing by default
+    }
+
+    /**
+     * Called on the thread that ran the class after its last test.
+     */
+    protected void classFinished() {
+        // nothing by default
+    }
+
+    /**
+     * Called on each thread of the pool when the pool shuts down.
+     */
+    protected void threadFinished() {
+        // nothing by default
+    }
+}
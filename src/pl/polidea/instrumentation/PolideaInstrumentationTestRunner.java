@@ -1,34 +1,46 @@
 package pl.polidea.instrumentation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-import android.content.res.Configuration;
-import android.content.res.Resources;
-import android.os.Build;
-import android.util.DisplayMetrics;
 import junit.framework.AssertionFailedError;
+import junit.framework.Protectable;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestListener;
-
-import org.xmlpull.v1.XmlSerializer;
-
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+import android.app.Activity;
+import android.app.Instrumentation;
 import android.os.Bundle;
+import android.os.Debug;
+import android.test.AndroidTestCase;
 import android.test.AndroidTestRunner;
+import android.test.InstrumentationTestCase;
 import android.test.InstrumentationTestRunner;
 import android.util.Log;
-import android.util.Xml;
 
 /**
  * Test runner that should produce JUnit-compatible test results. It can be used
@@ -54,6 +66,13 @@ import android.util.Xml;
  * <ul>
  * <li>junitXmlOutput - boolean ("true"/"false") indicating whether XML Junit
  * output should be produced at all. Default is true</li>
+ * <li>junitCompactOutput - string specifying whether the result of each test
+ * (class, name, status, time and the exception line) should also be written
+ * to a compact file that is cheaper to read than the XML. Allowed values are
+ * "none", "ndjson" (one JSON object per line in TEST-RESULTS.ndjson) or
+ * "binary" (length-prefixed records in TEST-RESULTS.bin). Records are written
+ * as tests finish, also when junitXmlOutput is false. Default value is
+ * "none"</li>
  * <li>junitOutputDirectory - string specifying in which directory the XML files
  * should be placed. Be careful when setting this parameter. TestRunner deletes
  * all the files matching postfix and single filename before running from this
@@ -72,6 +91,162 @@ import android.util.Xml;
  * are "class", "package" or "none". Default value is "package".</li>
  * <li>junitSingleFileName - string specifying what name will be given to output
  * file in case the split is "none". Default value is ALL-TEST.xml</li>
+ * <li>junitStreamOutput - boolean ("true"/"false") indicating whether results
+ * should be written to the output files as soon as each test finishes rather
+ * than all at once when the run finishes. Streaming keeps memory usage flat
+ * regardless of the number of tests run. Default is false</li>
+ * <li>junitPacing - string specifying whether the runner should wait after
+ * fast tests, which was needed by old Binder implementations. Allowed values
+ * are "off" (never wait), "fixed" (make every test take at least 100 ms) or
+ * "adaptive" (wait only on old API levels or when Binder calls start to queue
+ * up). Time spent waiting is reported in "pacing" attributes, separately from
+ * test time. Default value is "adaptive".</li>
+ * <li>junitPropertiesMode - string specifying how often the device properties
+ * are written. Allowed values are "suite" (in every test suite), "file" (in
+ * the first test suite of each file) or "run" (in the first test suite written
+ * in the whole run). Suites without device properties have
+ * &lt;properties&gt; element with only the shard properties (empty when not
+ * sharded). Default value is "suite".</li>
+ * <li>junitReportThreads - number of threads writing the output files in
+ * parallel when the run finishes (package and class split only). Default
+ * value is the number of processors, but not more than 4.</li>
+ * <li>numShards - number of shards the tests are split into when the same
+ * tests are run on several devices. Whole test case classes are assigned to
+ * shards. Default value is 1 (no sharding).</li>
+ * <li>shardIndex - index (from 0 to numShards - 1) of the shard run by this
+ * runner. It is written to each test suite as "instrumentation.shardIndex"
+ * property, whatever the junitPropertiesMode. Default value is 0.</li>
+ * <li>shardTimingsFile - path of an on-device text file containing
+ * "&lt;class name&gt; &lt;duration in ms&gt;" lines. If specified, test case
+ * classes are assigned to shards so that all shards take about the same time
+ * rather than by hash of the class name. All devices must be given the same
+ * file.</li>
+ * <li>junitHistory - boolean ("true"/"false") indicating whether durations of
+ * tests should be kept across runs in TEST-HISTORY.bin file in the output
+ * directory. When enabled, tests that became slower than their history are
+ * listed in PERFORMANCE-REGRESSIONS.xml file. History of tests that have not
+ * run in the last 20 runs is dropped. Default is false</li>
+ * <li>junitHistorySize - maximum number of past durations kept per test
+ * (1-255). Default value is 10.</li>
+ * <li>junitRegressionPercentile - percentile (0-100) of the past durations of
+ * a test its current duration is compared with. Default value is 50
+ * (median).</li>
+ * <li>junitRegressionRatio - how many times longer than the past duration a
+ * test must take to be reported as regression. Default value is 2.0.</li>
+ * <li>junitPhaseTiming - boolean ("true"/"false") indicating whether time of
+ * each test should be broken down into "setUp", "body", "tearDown", runner
+ * "overhead" and thread "cpu" time attributes of each test case. Tests that
+ * override runBare() only get overhead and cpu time. Default is false</li>
+ * <li>junitMemoryMetrics - boolean ("true"/"false") indicating whether memory
+ * usage should be sampled before and after each test. Each test case gets
+ * "heap" and "nativeHeap" (change of used bytes), "allocCount", "allocSize"
+ * (allocations of the test thread) and "gcCount" attributes. Tests after which
+ * used heap kept growing for 4 consecutive tests of the class are marked with
+ * "heapGrowing" attribute and counted in "heapGrowingTests" attribute of the
+ * suite, which also gets "memorySampling" time. Garbage collection is not
+ * forced, so the sampling is cheap. Default is false</li>
+ * <li>junitJournal - boolean ("true"/"false") indicating whether results
+ * should be appended to TEST-JOURNAL.bin file in the output directory as soon
+ * as each test finishes. The journal survives the death of the process, so
+ * results can be recovered with resumeFromJournal. Default is false</li>
+ * <li>junitJournalSyncInterval - number of tests after which the journal is
+ * synced to the storage. Default value is 10.</li>
+ * <li>resumeFromJournal - boolean ("true"/"false") indicating whether tests
+ * that passed according to the journal of a previous run should be skipped
+ * and reported with their recorded results. A test that was running when the
+ * process died is skipped as well and reported as error. The journal is
+ * continued. Default is false</li>
+ * <li>junitLive - string specifying whether results should be pushed to the
+ * host as soon as each test completes. Allowed values are "off", "status"
+ * (records are sent as instrumentation status, visible with
+ * "am instrument -r") or "socket" (records are written to a TCP connection on
+ * junitLivePort of the device, reachable from the host with "adb forward").
+ * Socket mode needs INTERNET permission in the test application. Default value
+ * is "off"</li>
+ * <li>junitLivePort - port on which the runner accepts the host connection in
+ * "socket" live mode. Default value is 8555.</li>
+ * <li>junitCompression - string specifying how report files are compressed.
+ * Allowed values are "none", "gzip" (each file is gzipped and gets ".gz"
+ * appended to its name) or "zip" (all files are stored in a single
+ * TEST-REPORTS.zip archive). Byte counts before and after compression are
+ * logged and returned in the instrumentation result. Default value is "none"</li>
+ * <li>junitPrettyXml - boolean ("true"/"false") indicating whether report
+ * files should be indented. Compact files are a bit faster to write and
+ * smaller. Default is true</li>
+ * <li>junitTraceDedup - boolean ("true"/"false") indicating whether a stack
+ * trace should be written in full only once per file. Later tests failing with
+ * the same exception type and frames get the exception line and a reference to
+ * the first test. Default is false</li>
+ * <li>junitTraceCollapse - boolean ("true"/"false") indicating whether
+ * consecutive frames of JUnit, the Android test framework, reflection and the
+ * runner should be collapsed into a single line. Default is false</li>
+ * <li>junitTraceDepth - maximum number of frames written for each exception
+ * in a stack trace. Default value is 0, which means no limit.</li>
+ * <li>junitCaptureOutput - boolean ("true"/"false") indicating whether
+ * System.out and System.err should be captured and written in system-out and
+ * system-err of each test case. Output written between tests is written in
+ * the test suite of the test that follows it. Default is false</li>
+ * <li>junitCaptureSize - size of the in-memory buffer of each captured stream
+ * in bytes. Output of a test that does not fit is spilled to a temporary file.
+ * Default value is 65536.</li>
+ * <li>junitCaptureLogcat - boolean ("true"/"false") indicating whether logcat
+ * lines of the test process should be captured together with System.out. Lines
+ * are read asynchronously, so they may be attributed to a later test. Lines of
+ * threads running tests in parallel go to the tests of the thread that logged
+ * them. Default is false</li>
+ * <li>junitOrder - string specifying the order tests are run in. Allowed
+ * values are "original" or "failuresFirst": classes with tests that failed
+ * the last time they ran go first (fastest first), then classes with tests
+ * that never ran, then the rest (longest first). Tests of a class stay
+ * together, the tests that failed first. Last results are kept in
+ * TEST-ORDER.bin file in the output directory. Default value is
+ * "original".</li>
+ * <li>failFast - boolean ("true"/"false") indicating whether the run should
+ * stop at the first error or failure. Remaining tests are not run and not
+ * reported. Default is false</li>
+ * <li>junitParallelThreads - number of threads running test case classes that
+ * are parallel-safe - annotated with {@link ParallelSafe} or in one of
+ * junitParallelPackages. They are run before the other tests, each class on a
+ * single thread. AndroidTestCase and InstrumentationTestCase classes always
+ * run on the instrumentation thread. Time, pacing and memory metrics of tests
+ * run in parallel include the load of other tests running at the same time.
+ * Default value is 1, which runs all tests one after another.</li>
+ * <li>junitParallelPackages - comma separated list of packages whose test case
+ * classes (including those in subpackages) are parallel-safe, in addition to
+ * the annotated ones.</li>
+ * <li>junitTestTimeout - maximum time of a single test in ms. A test that
+ * exceeds it is reported as error with the stacks of all threads and
+ * interrupted, so that the run continues with the next test. If the test still
+ * does not finish 10 s later, the reports are written and the run is aborted.
+ * Default value is 0, which means no limit.</li>
+ * <li>junitSuiteTimeout - maximum total time of the tests of a single test
+ * case class in ms. The test running when a class exceeds it times out the
+ * same way as with junitTestTimeout. The following tests of the class are
+ * reported as errors when they start and are started interrupted. Default
+ * value is 0, which means no limit.</li>
+ * <li>junitRetries - maximum number of times a test that failed is run again.
+ * After all tests ran, failed tests are run again on new instances of their
+ * classes, in the same process, until they pass or run out of retries. Earlier
+ * runs are written the way Maven Surefire does: tests that passed on retry get
+ * flakyFailure/flakyError elements, tests that kept failing keep the first
+ * error or failure and get rerunFailure/rerunError elements for the others.
+ * The number of flaky tests is returned as junitFlakyTests in the
+ * instrumentation result. Default value is 0, which means no retries.</li>
+ * <li>junitBenchmark - boolean ("true"/"false") indicating whether test
+ * methods annotated with {@link Benchmark} are run as benchmarks: warmup
+ * iterations, then measured iterations, each with its own setUp() and
+ * tearDown(), collecting garbage before each batch of measured iterations.
+ * Minimum, median, 90th and 99th percentile of the time of the test method and
+ * operations per second are written as properties of the test case. The time
+ * of the test case and junitTestTimeout cover all iterations. Benchmarks of
+ * classes run in parallel are distorted by the other tests. Default is false,
+ * which runs annotated tests once, like the others.</li>
+ * <li>junitBenchmarkWarmup - number of warmup iterations of benchmarks that do
+ * not set their own. Default value is 5.</li>
+ * <li>junitBenchmarkIterations - number of measured iterations of benchmarks
+ * that do not set their own. Default value is 20.</li>
+ * <li>junitBenchmarkBatchSize - number of measured iterations between garbage
+ * collections. Default value is 10.</li>
  * </ul>
  * 
  * For more details about parameters, visit <a
@@ -89,6 +264,10 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
     private static final String FAILURES = "failures";
     private static final String ERROR = "error";
     private static final String FAILURE = "failure";
+    private static final String FLAKY_ERROR = "flakyError";
+    private static final String FLAKY_FAILURE = "flakyFailure";
+    private static final String RERUN_ERROR = "rerunError";
+    private static final String RERUN_FAILURE = "rerunFailure";
     private static final String NAME = "name";
     private static final String VALUE = "value";
     private static final String PACKAGE = "package";
@@ -97,34 +276,154 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
     private static final String CLASSNAME = "classname";
     private static final String TIME = "time";
     private static final String TIMESTAMP = "timestamp";
+    private static final String PACING = "pacing";
+    private static final String CLEANUP = "cleanup";
+    private static final String SET_UP = "setUp";
+    private static final String BODY = "body";
+    private static final String TEAR_DOWN = "tearDown";
+    private static final String OVERHEAD = "overhead";
+    private static final String CPU = "cpu";
+    private static final String HEAP = "heap";
+    private static final String NATIVE_HEAP = "nativeHeap";
+    private static final String ALLOC_COUNT = "allocCount";
+    private static final String ALLOC_SIZE = "allocSize";
+    private static final String GC_COUNT = "gcCount";
+    private static final String HEAP_GROWING = "heapGrowing";
+    private static final String HEAP_GROWING_TESTS = "heapGrowingTests";
+    private static final String MEMORY_SAMPLING = "memorySampling";
     private static final String PROPERTIES = "properties";
     private static final String PROPERTY = "property";
+    private static final String BENCHMARK_WARMUP = "benchmark.warmupIterations";
+    private static final String BENCHMARK_ITERATIONS = "benchmark.iterations";
+    private static final String BENCHMARK_MIN = "benchmark.minNanos";
+    private static final String BENCHMARK_MEDIAN = "benchmark.medianNanos";
+    private static final String BENCHMARK_P90 = "benchmark.p90Nanos";
+    private static final String BENCHMARK_P99 = "benchmark.p99Nanos";
+    private static final String BENCHMARK_OPS = "benchmark.opsPerSecond";
     private static final String SYSTEM_OUT = "system-out";
     private static final String SYSTEM_ERR = "system-err";
+    private static final String REGRESSIONS = "regressions";
+    private static final String BASELINE = "baseline";
+    private static final String SAMPLES = "samples";
+    private static final String RATIO = "ratio";
+    private static final String PERCENTILE = "percentile";
 
     private static final String SPLIT_LEVEL_NONE = "none";
     private static final String SPLIT_LEVEL_CLASS = "class";
     private static final String SPLIT_LEVEL_PACKAGE = "package";
 
+    private static final String PROPERTIES_MODE_SUITE = "suite";
+    private static final String PROPERTIES_MODE_FILE = "file";
+    private static final String PROPERTIES_MODE_RUN = "run";
+
     private static final String TAG = PolideaInstrumentationTestRunner.class.getSimpleName();
     private static final String DEFAULT_JUNIT_FILE_POSTFIX = "-TEST.xml";
     private static final String DEFAULT_NO_PACKAGE_PREFIX = "NO_PACKAGE";
     private static final String DEFAULT_SINGLE_FILE_NAME = "ALL-TEST.xml";
     private static final String DEFAULT_SPLIT_LEVEL = SPLIT_LEVEL_PACKAGE;
+    private static final String DEFAULT_PACING = TestPacer.PACING_ADAPTIVE;
+    private static final String DEFAULT_PROPERTIES_MODE = PROPERTIES_MODE_SUITE;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /**
+     * Number of consecutive increases of used heap after which tests are
+     * marked as growing heap.
+     */
+    private static final int HEAP_GROWTH_STREAK = 3;
+    private static final int DEFAULT_REPORT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final String HISTORY_FILE_NAME = "TEST-HISTORY.bin";
+    private static final String REGRESSIONS_FILE_NAME = "PERFORMANCE-REGRESSIONS.xml";
+    private static final String JOURNAL_FILE_NAME = "TEST-JOURNAL.bin";
+    private static final int DEFAULT_JOURNAL_SYNC_INTERVAL = 10;
+    private static final String DEFAULT_LIVE = LiveResultPublisher.LIVE_OFF;
+    private static final int DEFAULT_LIVE_PORT = 8555;
+    private static final String DEFAULT_COMPRESSION = ReportOutput.COMPRESSION_NONE;
+    private static final int DEFAULT_CAPTURE_SIZE = 65536;
+    private static final int DEFAULT_PARALLEL_THREADS = 1;
+    private static final int DEFAULT_BENCHMARK_WARMUP = 5;
+    private static final int DEFAULT_BENCHMARK_ITERATIONS = 20;
+    private static final int DEFAULT_BENCHMARK_BATCH_SIZE = 10;
+    private static final String DEFAULT_COMPACT_OUTPUT = CompactResultWriter.FORMAT_NONE;
+    private static final String ORDER_ORIGINAL = "original";
+    private static final String ORDER_FAILURES_FIRST = "failuresFirst";
+    private static final String DEFAULT_ORDER = ORDER_ORIGINAL;
+    private static final String ORDER_FILE_NAME = "TEST-ORDER.bin";
+    private static final int DEFAULT_HISTORY_SIZE = 10;
+    private static final int MAX_HISTORY_SIZE = 255;
+    private static final int DEFAULT_REGRESSION_PERCENTILE = 50;
+    private static final double DEFAULT_REGRESSION_RATIO = 2.0;
+    private String junitCompactOutput;
     private String junitOutputDirectory = null;
     private String junitOutputFilePostfix = null;
     private String junitNoPackagePrefix;
     private String junitSplitLevel;
     private String junitSingleFileName;
+    private boolean junitStreamOutput;
+    private String junitPacing;
+    private String junitPropertiesMode;
+    private int junitReportThreads;
+    private int shardIndex;
+    private int numShards;
+    private String shardTimingsFile;
+    private boolean junitHistory;
+    private int junitHistorySize;
+    private int junitRegressionPercentile;
+    private double junitRegressionRatio;
+    private boolean junitPhaseTiming;
+    private boolean junitMemoryMetrics;
+    private boolean junitJournal;
+    private int junitJournalSyncInterval;
+    private boolean resumeFromJournal;
+    private String junitLive;
+    private int junitLivePort;
+    private String junitCompression;
+    private boolean junitPrettyXml;
+    private boolean junitTraceDedup;
+    private boolean junitTraceCollapse;
+    private int junitTraceDepth;
+    private boolean junitCaptureOutput;
+    private int junitCaptureSize;
+    private boolean junitCaptureLogcat;
+    private String junitOrder;
+    private boolean failFast;
+    private int junitParallelThreads;
+    private String junitParallelPackages;
+    private int junitTestTimeout;
+    private int junitSuiteTimeout;
+    private int junitRetries;
+    private boolean junitBenchmark;
+    private int junitBenchmarkWarmup;
+    private int junitBenchmarkIterations;
+    private int junitBenchmarkBatchSize;
 
     private boolean junitOutputEnabled;
     private boolean justCount;
-    private XmlSerializer currentXmlSerializer;
-    private final LinkedHashMap<Package, TestCaseInfo> caseMap = new LinkedHashMap<Package, TestCaseInfo>();
+    private final LinkedHashMap<Package, TestPackageInfo> packageMap = new LinkedHashMap<Package, TestPackageInfo>();
     private boolean outputEnabled;
     private AndroidTestRunner runner;
     private boolean logOnly;
-    private PrintWriter currentFileWriter;
+    private DeviceProperties deviceProperties;
+    private boolean propertiesWrittenInRun;
+    private StreamingReportWriter streamingWriter;
+    private TestPacer pacer;
+    private final TestCaseCleaner cleaner = new TestCaseCleaner();
+    private TestSharder sharder;
+    private DurationHistory durationHistory;
+    private JunitTestListener testListener;
+    private TestPhaseTimer phaseTimer;
+    private TestBenchmark benchmark;
+    private MemorySampler memorySampler;
+    private ResultJournal journal;
+    private Map<String, ResultJournal.Entry> journalEntries;
+    private LiveResultPublisher livePublisher;
+    private ReportOutput reportOutput;
+    private StackTraceFormatter traceFormatter;
+    private OutputCapture outputCapture;
+    private CompactResultWriter compactWriter;
+    private PriorRunOrder priorRunOrder;
+    private TestWatchdog watchdog;
+    private boolean finished;
+    private int flakyTests;
+    private final List<String> parallelPackages = new ArrayList<String>();
 
     /**
      * Stores information about single test run.
@@ -137,33 +436,149 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         public Throwable error;
         public AssertionFailedError failure;
         public long time;
+        public long timeNanos;
+        public long pacingTimeNanos;
+        public long cleanupTimeNanos;
+        public boolean phasesMeasured;
+        public long setUpNanos;
+        public long bodyNanos;
+        public long tearDownNanos;
+        public long overheadNanos;
+        public long cpuNanos;
+        public boolean memorySampled;
+        public long heapDelta;
+        public long nativeHeapDelta;
+        public long allocCount;
+        public long allocSize;
+        public long gcCount;
+        public boolean heapGrowing;
+        public long memorySamplingNanos;
+        public OutputCapture.Captured systemOut;
+        public OutputCapture.Captured systemErr;
+        public OutputCapture.Captured suiteOut;
+        public OutputCapture.Captured suiteErr;
+        /**
+         * Earlier runs of a test run again because of junitRetries, null if
+         * the test ran once.
+         */
+        public List<TestAttempt> attempts;
+        public boolean flaky;
+        /**
+         * Statistics of the measured iterations, null if the test did not run
+         * as a benchmark.
+         */
+        public TestBenchmark.Result benchmark;
 
         @Override
         public String toString() {
-            return name + "[" + testCase.getClass() + "] <" + thePackage + ">. Time: " + time + " ms. E<" + error
+            return name + "[" + testCase.getClass() + "] <" + thePackage + ">. Time: " + timeNanos + " ns. Pacing: "
+                    + pacingTimeNanos + " ns. E<" + error
                     + ">, F <" + failure + ">";
         }
     }
 
+    /**
+     * Result of an earlier run of a test that was run again.
+     * 
+     */
+    public static class TestAttempt {
+        public Throwable error;
+        public AssertionFailedError failure;
+        public long timeNanos;
+
+        TestAttempt(final TestInfo testInfo) {
+            error = testInfo.error;
+            failure = testInfo.failure;
+            timeNanos = testInfo.timeNanos;
+        }
+    }
+
     /**
      * Stores information about particular test case class - containing all
-     * tests for that class.
+     * tests for that class keyed by test name. The counters are updated as
+     * results arrive, so they never have to be computed from the tests.
      * 
      */
     public static class TestCaseInfo {
         public Package thePackage;
         public Class< ? extends TestCase> testCaseClass;
         public Map<String, TestInfo> testMap = new LinkedHashMap<String, TestInfo>();
+        public int tests;
+        public int errors;
+        public int failures;
+        public long timeNanos;
+        public long pacingTimeNanos;
+        public long cleanupTimeNanos;
+        public int heapGrowingTests;
+        public long memorySamplingNanos;
+        public long lastHeapUsed = -1;
+        public int heapGrowthStreak;
+        public List<OutputCapture.Captured> systemOut = new ArrayList<OutputCapture.Captured>();
+        public List<OutputCapture.Captured> systemErr = new ArrayList<OutputCapture.Captured>();
     }
 
     /**
      * Stores information about the whole package containing multiple test
-     * cases.
+     * cases. The counters are the sums of the counters of its test cases.
      * 
      */
     public static class TestPackageInfo {
         public Package thePackage;
         public Map<Class< ? extends TestCase>, TestCaseInfo> testCaseList = new LinkedHashMap<Class< ? extends TestCase>, TestCaseInfo>();
+        public int tests;
+        public int errors;
+        public int failures;
+        public long timeNanos;
+    }
+
+    /**
+     * Output file opened for writing. Besides the XML serializer it keeps the
+     * underlying writer, so that fragments encoded in advance can be written
+     * verbatim.
+     * 
+     */
+    private static class ReportFile {
+        private final File file;
+        private final XmlReportWriter serializer;
+        private final StackTraceFormatter.Occurrences traces = new StackTraceFormatter.Occurrences();
+        private boolean propertiesWritten;
+
+        private ReportFile(final File file, final XmlReportWriter serializer) {
+            this.file = file;
+            this.serializer = serializer;
+        }
+
+        private void writeRaw(final String fragment) throws IOException {
+            serializer.raw(fragment);
+        }
+    }
+
+    /**
+     * Result entry of the test currently running on a thread. The entry is
+     * resolved once when the test starts, so that errors, failures and the end
+     * of the test are recorded without looking it up again.
+     * 
+     */
+    private static class RunningTest {
+        private Test test;
+        private TestPackageInfo packageInfo;
+        private TestCaseInfo caseInfo;
+        private TestInfo testInfo;
+        private long startNanos;
+        private long startCpuNanos;
+        private boolean phasesMeasured;
+        private TestBenchmark.Result benchmark;
+        private final long[] phaseNanos = new long[TestPhaseTimer.PHASES];
+        private final long[] memoryBefore = new long[MemorySampler.VALUES];
+        private final long[] memoryAfter = new long[MemorySampler.VALUES];
+        private long memorySamplingNanos;
+        private TestWatchdog.Watch watch;
+        /**
+         * Set by the watchdog, which records the timeout as the error of the
+         * test. Errors and failures that follow are caused by the interrupt,
+         * so they are not recorded.
+         */
+        private boolean timedOut;
     }
 
     /**
@@ -177,30 +592,80 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
     private class JunitTestListener implements TestListener {
 
         /**
-         * The minimum time we expect a test to take.
+         * Tests of parallel-safe classes run on several threads, so measured
+         * time and the result entry are separate per each thread running the
+         * tests.
+         */
+        private final ThreadLocal<RunningTest> runningTest = new ThreadLocal<RunningTest>() {
+            @Override
+            protected RunningTest initialValue() {
+                return new RunningTest();
+            }
+        };
+        /**
+         * Tests that failed since the retry batch last took them.
          */
-        private static final int MINIMUM_TIME = 100;
+        private final List<TestCase> failedTests = new ArrayList<TestCase>();
         /**
-         * Just in case it ever happens that the tests are run in parallell
-         * (maybe future junit version?) we make sure that measured time is
-         * separate per each thread running the tests.
+         * Tests that failed at least once, in the order they first failed.
+         * Their results are kept until the retries finish.
          */
-        private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+        private final List<TestCase> retriedTests = new ArrayList<TestCase>();
 
         @Override
         public void startTest(final Test test) {
             Log.d(TAG, "Starting test: " + test);
             if (test instanceof TestCase) {
                 Thread.currentThread().setContextClassLoader(test.getClass().getClassLoader());
-                startTime.set(System.currentTimeMillis());
+                final RunningTest running = runningTest.get();
+                registerTestInfo((TestCase) test, running);
+                if (journal != null) {
+                    journal.testStarted(test.getClass().getName(), ((TestCase) test).getName());
+                }
+                if (livePublisher != null) {
+                    livePublisher.testStarted(test.getClass().getName(), ((TestCase) test).getName());
+                }
+                running.phasesMeasured = false;
+                running.benchmark = null;
+                if (outputCapture != null) {
+                    running.testInfo.suiteOut = outputCapture.take(OutputCapture.OUT);
+                    running.testInfo.suiteErr = outputCapture.take(OutputCapture.ERR);
+                }
+                if (memorySampler != null) {
+                    running.memorySamplingNanos = memorySampler.sample(running.memoryBefore);
+                }
+                final long now = System.nanoTime();
+                pacer.testStarted(now);
+                running.startCpuNanos = Debug.threadCpuTimeNanos();
+                running.startNanos = now;
+                if (watchdog != null) {
+                    watchTest(running);
+                }
             }
         }
 
         @Override
         public void endTest(final Test t) {
             if (t instanceof TestCase) {
+                final long endNanos = System.nanoTime();
+                final long endCpuNanos = Debug.threadCpuTimeNanos();
                 final TestCase testCase = (TestCase) t;
-                cleanup(testCase);
+                final RunningTest running = getRunningTest(testCase);
+                if (running.watch != null) {
+                    watchdog.testFinished(running.watch);
+                }
+                if (running.timedOut) {
+                    // the interrupt might not have been consumed by the test
+                    Thread.interrupted();
+                }
+                if (memorySampler != null) {
+                    running.memorySamplingNanos += memorySampler.sample(running.memoryAfter);
+                }
+                if (outputCapture != null) {
+                    running.testInfo.systemOut = outputCapture.take(OutputCapture.OUT);
+                    running.testInfo.systemErr = outputCapture.take(OutputCapture.ERR);
+                }
+                final long cleanupTimeNanos = cleaner.cleanup(testCase);
                 /*
                  * Note! This is copied from InstrumentationCoreTestRunner in
                  * android code
@@ -208,16 +673,48 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
                  * Make sure all tests take at least MINIMUM_TIME to complete.
                  * If they don't, we wait a bit. The Cupcake Binder can't handle
                  * too many operations in a very short time, which causes
-                 * headache for the CTS.
+                 * headache for the CTS. How and when we wait is decided by the
+                 * pacing policy.
                  */
-                final long timeTaken = System.currentTimeMillis() - startTime.get();
-                getTestInfo(testCase).time = timeTaken;
-                if (timeTaken < MINIMUM_TIME) {
-                    try {
-                        Thread.sleep(MINIMUM_TIME - timeTaken);
-                    } catch (final InterruptedException ignored) {
-                        // We don't care.
-                    }
+                final long timeNanos = endNanos - running.startNanos;
+                final TestInfo testInfo = running.testInfo;
+                recordTime(running, timeNanos, cleanupTimeNanos, pacer.pace(timeNanos));
+                recordPhases(running, timeNanos, endCpuNanos - running.startCpuNanos);
+                if (memorySampler != null) {
+                    recordMemory(running);
+                }
+                if (journal != null) {
+                    journal.testFinished(testInfo);
+                }
+                if (livePublisher != null) {
+                    livePublisher.testFinished(testInfo);
+                }
+                if (durationHistory != null && testInfo.attempts == null) {
+                    durationHistory.record(testCase.getClass().getName(), testCase.getName(), testInfo.time);
+                }
+                if (compactWriter != null) {
+                    compactWriter.write(testInfo);
+                }
+                if (priorRunOrder != null) {
+                    priorRunOrder.record(testInfo);
+                }
+                final boolean failed = testInfo.error != null || testInfo.failure != null;
+                if (junitRetries > 0 && (failed || testInfo.attempts != null)) {
+                    // written when the retries finish
+                    holdForRetry(testCase, testInfo, failed);
+                } else if (streamingWriter != null) {
+                    removeTestInfo(running);
+                    streamingWriter.write(testInfo);
+                } else if (!outputEnabled) {
+                    // only the compact output is written, which is done
+                    removeTestInfo(running);
+                }
+                synchronized (running) {
+                    running.test = null;
+                    running.packageInfo = null;
+                    running.caseInfo = null;
+                    running.testInfo = null;
+                    running.timedOut = false;
                 }
             }
             Log.d(TAG, "Finished test: " + t);
@@ -226,90 +723,684 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         @Override
         public void addError(final Test test, final Throwable t) {
             if (test instanceof TestCase) {
-                getTestInfo((TestCase) test).error = t;
+                final RunningTest running = getRunningTest((TestCase) test);
+                synchronized (running) {
+                    recordError(running, t);
+                }
             }
         }
 
         @Override
         public void addFailure(final Test test, final AssertionFailedError f) {
             if (test instanceof TestCase) {
-                getTestInfo((TestCase) test).failure = f;
+                final RunningTest running = getRunningTest((TestCase) test);
+                synchronized (running) {
+                    recordFailure(running, f);
+                }
+            }
+        }
+
+        /**
+         * Records the result of a test skipped because it was recorded in the
+         * journal of a previous run.
+         */
+        private void recordResumed(final TestCase testCase, final ResultJournal.Entry entry) {
+            final RunningTest running = new RunningTest();
+            registerTestInfo(testCase, running);
+            recordTime(running, entry.timeNanos, 0, 0);
+            if (entry.isCrashed()) {
+                recordError(running, new RecordedError("Process died while running " + testCase.getName()));
+            }
+            if (livePublisher != null) {
+                livePublisher.testFinished(running.testInfo);
+            }
+            if (compactWriter != null) {
+                compactWriter.write(running.testInfo);
+            }
+            if (priorRunOrder != null) {
+                priorRunOrder.record(running.testInfo);
+            }
+            if (streamingWriter != null) {
+                removeTestInfo(running);
+                streamingWriter.addResumed(running.testInfo);
+            } else if (!outputEnabled) {
+                removeTestInfo(running);
+            }
+        }
+
+        private void holdForRetry(final TestCase testCase, final TestInfo testInfo, final boolean failed) {
+            if (streamingWriter != null) {
+                streamingWriter.holdClass(testCase.getClass());
+            }
+            synchronized (failedTests) {
+                if (testInfo.attempts == null) {
+                    retriedTests.add(testCase);
+                }
+                if (failed) {
+                    failedTests.add(testCase);
+                }
+            }
+        }
+
+        private List<TestCase> takeFailedTests() {
+            synchronized (failedTests) {
+                final List<TestCase> tests = new ArrayList<TestCase>(failedTests);
+                failedTests.clear();
+                return tests;
             }
         }
 
         /**
-         * Nulls all non-static reference fields in the given test class. This
-         * method helps us with those test classes that don't have an explicit
-         * tearDown() method. Normally the garbage collector should take care of
-         * everything, but since JUnit keeps references to all test cases, a
-         * little help might be a good idea.
-         * 
-         * Note! This is copied from InstrumentationCoreTestRunner in android
-         * code
+         * Keeps the result of the previous run of the test as an attempt, so
+         * that the test is recorded anew when it runs again.
          */
-        private void cleanup(final TestCase test) {
-            Class< ? > clazz = test.getClass();
-
-            while (clazz != TestCase.class) {
-                final Field[] fields = clazz.getDeclaredFields();
-                for (final Field field : fields) {
-                    final Field f = field;
-                    if (!f.getType().isPrimitive() && !Modifier.isStatic(f.getModifiers())) {
-                        try {
-                            f.setAccessible(true);
-                            f.set(test, null);
-                        } catch (final Exception ignored) {
-                            // Nothing we can do about it.
+        private void startRetry(final TestCase retry) {
+            final RunningTest running = runningTest.get();
+            registerTestInfo(retry, running);
+            final TestInfo testInfo = running.testInfo;
+            if (testInfo.attempts == null) {
+                testInfo.attempts = new ArrayList<TestAttempt>();
+            }
+            testInfo.attempts.add(new TestAttempt(testInfo));
+            clearResult(running);
+        }
+
+        /**
+         * Marks tests that passed on retry as flaky and writes the results
+         * kept until now. Like Surefire, a test that kept failing is reported
+         * with its first error or failure and the later ones as reruns.
+         */
+        private void finishRetries() {
+            final List<TestCase> tests;
+            synchronized (failedTests) {
+                tests = new ArrayList<TestCase>(retriedTests);
+                retriedTests.clear();
+                failedTests.clear();
+            }
+            int flaky = 0;
+            for (final TestCase testCase : tests) {
+                final RunningTest running = new RunningTest();
+                registerTestInfo(testCase, running);
+                final TestInfo testInfo = running.testInfo;
+                if (testInfo.attempts != null) {
+                    if (testInfo.error == null && testInfo.failure == null) {
+                        testInfo.flaky = true;
+                        flaky++;
+                    } else {
+                        final TestAttempt first = testInfo.attempts.remove(0);
+                        testInfo.attempts.add(new TestAttempt(testInfo));
+                        clearResult(running);
+                        if (first.error != null) {
+                            recordError(running, first.error);
+                        }
+                        if (first.failure != null) {
+                            recordFailure(running, first.failure);
                         }
                     }
                 }
+                if (streamingWriter != null) {
+                    removeTestInfo(running);
+                    streamingWriter.write(testInfo);
+                } else if (!outputEnabled) {
+                    removeTestInfo(running);
+                }
+            }
+            flakyTests += flaky;
+            Log.d(TAG, "Retried " + tests.size() + " tests, " + flaky + " of them passed on retry");
+        }
+
+        private void clearResult(final RunningTest running) {
+            final TestInfo testInfo = running.testInfo;
+            final int errors = testInfo.error == null ? 0 : 1;
+            final int failures = testInfo.failure == null ? 0 : 1;
+            synchronized (running.caseInfo) {
+                running.caseInfo.errors -= errors;
+                running.caseInfo.failures -= failures;
+            }
+            synchronized (running.packageInfo) {
+                running.packageInfo.errors -= errors;
+                running.packageInfo.failures -= failures;
+            }
+            testInfo.error = null;
+            testInfo.failure = null;
+        }
+
+        /**
+         * Starts watching the test with the smaller of the test budget and
+         * what is left of the budget of its class.
+         */
+        private void watchTest(final RunningTest running) {
+            if (running.watch == null) {
+                running.watch = watchdog.newWatch(running);
+            }
+            long budgetNanos = Long.MAX_VALUE;
+            String budget = null;
+            if (junitTestTimeout > 0) {
+                budgetNanos = junitTestTimeout * NANOS_PER_MILLI;
+                budget = "test budget of " + junitTestTimeout + " ms";
+            }
+            if (junitSuiteTimeout > 0) {
+                final long spentNanos;
+                synchronized (running.caseInfo) {
+                    spentNanos = running.caseInfo.timeNanos;
+                }
+                final long leftNanos = junitSuiteTimeout * NANOS_PER_MILLI - spentNanos;
+                if (leftNanos <= 0) {
+                    recordTimeout(running, running.test + " started after its class exceeded the suite budget of "
+                            + junitSuiteTimeout + " ms");
+                    Thread.currentThread().interrupt();
+                } else if (leftNanos < budgetNanos) {
+                    budgetNanos = leftNanos;
+                    budget = "suite budget of " + junitSuiteTimeout + " ms, " + spentNanos / NANOS_PER_MILLI
+                            + " ms of which was spent before the test";
+                }
+            }
+            if (budget != null) {
+                watchdog.testStarted(running.watch, running.test.toString(), budgetNanos, budget);
+            }
+        }
+
+        /**
+         * Called on the watchdog thread while the test is still running, or
+         * when the test starts after the budget of its class was exceeded.
+         */
+        private void recordTimeout(final RunningTest running, final String description) {
+            synchronized (running) {
+                if (running.testInfo == null) {
+                    return;
+                }
+                // replaces whatever the test reported before it hung
+                recordError(running, new RecordedError(description));
+                running.timedOut = true;
+            }
+        }
+
+        /**
+         * Called on the watchdog thread when the test did not finish after it
+         * was interrupted. The test never ends, so it is recorded here and the
+         * run is finished with the reports written.
+         */
+        private void abortRun(final RunningTest running) {
+            final TestInfo testInfo;
+            synchronized (running) {
+                testInfo = running.testInfo;
+                if (testInfo == null) {
+                    return;
+                }
+                recordTime(running, System.nanoTime() - running.startNanos, 0, 0);
+            }
+            Log.e(TAG, "Aborting the run, " + running.test + " did not finish after it was interrupted");
+            if (compactWriter != null) {
+                compactWriter.write(testInfo);
+            }
+            if (streamingWriter != null) {
+                removeTestInfo(running);
+                streamingWriter.write(testInfo);
+            }
+            final Bundle results = new Bundle();
+            results.putString(Instrumentation.REPORT_KEY_STREAMRESULT, "Run aborted: " + running.test
+                    + " did not finish after it timed out\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
 
-                clazz = clazz.getSuperclass();
+        /**
+         * Returns the entry resolved when the test started. It only falls back
+         * to registering the test if it is reported without having been
+         * started on this thread.
+         */
+        private RunningTest getRunningTest(final TestCase testCase) {
+            final RunningTest running = runningTest.get();
+            if (running.test != testCase) {
+                registerTestInfo(testCase, running);
+            }
+            return running;
+        }
+
+        private void recordTime(final RunningTest running, final long timeNanos, final long cleanupTimeNanos,
+                final long pacingTimeNanos) {
+            final TestInfo testInfo = running.testInfo;
+            synchronized (running.caseInfo) {
+                // the test might have been run before under the same name
+                running.caseInfo.timeNanos += timeNanos - testInfo.timeNanos;
+                running.caseInfo.pacingTimeNanos += pacingTimeNanos - testInfo.pacingTimeNanos;
+                running.caseInfo.cleanupTimeNanos += cleanupTimeNanos - testInfo.cleanupTimeNanos;
+            }
+            synchronized (running.packageInfo) {
+                running.packageInfo.timeNanos += timeNanos - testInfo.timeNanos;
+            }
+            testInfo.time = timeNanos / NANOS_PER_MILLI;
+            testInfo.timeNanos = timeNanos;
+            testInfo.pacingTimeNanos = pacingTimeNanos;
+            testInfo.cleanupTimeNanos = cleanupTimeNanos;
+        }
+
+        /**
+         * Runner overhead is the time between the start and the end of the
+         * test not spent in its phases - like other listeners - plus the
+         * cleanup, which happens after the test time is measured.
+         */
+        private void recordPhases(final RunningTest running, final long timeNanos, final long cpuNanos) {
+            final TestInfo testInfo = running.testInfo;
+            testInfo.phasesMeasured = running.phasesMeasured;
+            testInfo.benchmark = running.benchmark;
+            testInfo.cpuNanos = cpuNanos;
+            if (running.phasesMeasured) {
+                testInfo.setUpNanos = running.phaseNanos[TestPhaseTimer.SET_UP];
+                testInfo.bodyNanos = running.phaseNanos[TestPhaseTimer.BODY];
+                testInfo.tearDownNanos = running.phaseNanos[TestPhaseTimer.TEAR_DOWN];
+                testInfo.overheadNanos = timeNanos - testInfo.setUpNanos - testInfo.bodyNanos
+                        - testInfo.tearDownNanos + testInfo.cleanupTimeNanos;
+            } else {
+                testInfo.overheadNanos = testInfo.cleanupTimeNanos;
+            }
+        }
+
+        private void recordMemory(final RunningTest running) {
+            final TestInfo testInfo = running.testInfo;
+            final long[] before = running.memoryBefore;
+            final long[] after = running.memoryAfter;
+            testInfo.memorySampled = true;
+            testInfo.heapDelta = after[MemorySampler.HEAP_USED] - before[MemorySampler.HEAP_USED];
+            testInfo.nativeHeapDelta = after[MemorySampler.NATIVE_HEAP] - before[MemorySampler.NATIVE_HEAP];
+            testInfo.allocCount = after[MemorySampler.ALLOC_COUNT] - before[MemorySampler.ALLOC_COUNT];
+            testInfo.allocSize = after[MemorySampler.ALLOC_SIZE] - before[MemorySampler.ALLOC_SIZE];
+            testInfo.gcCount = after[MemorySampler.GC_COUNT] - before[MemorySampler.GC_COUNT];
+            testInfo.memorySamplingNanos = running.memorySamplingNanos;
+            testInfo.overheadNanos += running.memorySamplingNanos;
+            final TestCaseInfo caseInfo = running.caseInfo;
+            synchronized (caseInfo) {
+                final long heapUsed = after[MemorySampler.HEAP_USED];
+                if (caseInfo.lastHeapUsed >= 0 && heapUsed > caseInfo.lastHeapUsed) {
+                    caseInfo.heapGrowthStreak++;
+                } else {
+                    caseInfo.heapGrowthStreak = 0;
+                }
+                caseInfo.lastHeapUsed = heapUsed;
+                testInfo.heapGrowing = caseInfo.heapGrowthStreak >= HEAP_GROWTH_STREAK;
+                if (testInfo.heapGrowing) {
+                    caseInfo.heapGrowingTests++;
+                }
+                caseInfo.memorySamplingNanos += running.memorySamplingNanos;
+            }
+        }
+
+        private void recordError(final RunningTest running, final Throwable t) {
+            if (running.timedOut) {
+                return;
+            }
+            if (running.testInfo.error == null) {
+                synchronized (running.caseInfo) {
+                    running.caseInfo.errors++;
+                }
+                synchronized (running.packageInfo) {
+                    running.packageInfo.errors++;
+                }
+            }
+            running.testInfo.error = t;
+        }
+
+        private void recordFailure(final RunningTest running, final AssertionFailedError f) {
+            if (running.timedOut) {
+                return;
+            }
+            if (running.testInfo.failure == null) {
+                synchronized (running.caseInfo) {
+                    running.caseInfo.failures++;
+                }
+                synchronized (running.packageInfo) {
+                    running.packageInfo.failures++;
+                }
+            }
+            running.testInfo.failure = f;
+        }
+    }
+
+    /**
+     * Test result that runs tests through {@link TestPhaseTimer}, so that the
+     * time of setUp(), the test itself and tearDown() is known to the
+     * listener, and benchmarks through {@link TestBenchmark}. With failFast it
+     * stops at the first error or failure and skips the remaining tests - the
+     * instrumentation runs all tests without asking the result whether to
+     * stop.
+     * 
+     */
+    private class RunnerTestResult extends TestResult {
+        @Override
+        protected void run(final TestCase test) {
+            if (failFast && shouldStop()) {
+                return;
+            }
+            startTest(test);
+            runProtected(test, new Protectable() {
+                @Override
+                public void protect() throws Throwable {
+                    final RunningTest running = testListener == null ? null : testListener.runningTest.get();
+                    final Benchmark annotation = benchmark == null ? null : benchmark.getBenchmark(test);
+                    if (annotation != null && running != null && running.test == test) {
+                        running.benchmark = benchmark.run(test, annotation);
+                    } else if (phaseTimer != null && running != null && running.test == test) {
+                        running.phasesMeasured = phaseTimer.runBare(test, running.phaseNanos);
+                    } else {
+                        test.runBare();
+                    }
+                }
+            });
+            endTest(test);
+        }
+
+        @Override
+        public synchronized void addError(final Test test, final Throwable t) {
+            super.addError(test, t);
+            stopIfFailFast(test);
+        }
+
+        @Override
+        public synchronized void addFailure(final Test test, final AssertionFailedError f) {
+            super.addFailure(test, f);
+            stopIfFailFast(test);
+        }
+
+        private void stopIfFailFast(final Test test) {
+            if (failFast && !shouldStop()) {
+                Log.d(TAG, "Skipping remaining tests after the first error or failure in " + test);
+                stop();
             }
         }
     }
 
-    private synchronized TestInfo getTestInfo(final TestCase testCase) {
+    /**
+     * Writes results to the output files as soon as each test finishes, so that
+     * they do not have to be kept in memory until the end of the run. Tests of
+     * one class are run one after another on the same thread, therefore the
+     * suite of a class is written to its file as soon as a test of another
+     * class finishes on that thread (or the thread finishes the class). Only
+     * the - already serialized - test cases of the current class of each
+     * thread are buffered, because suite counters have to be written before
+     * them.
+     * 
+     * Tests held for retry are written when the retries finish, so the suite
+     * of a class with such a test is kept open (and its file, when split by
+     * class) until then, and the retried tests join it.
+     * 
+     */
+    private class StreamingReportWriter {
+        private final Map<File, ReportFile> openFiles = new LinkedHashMap<File, ReportFile>();
+        private final Map<Thread, OpenSuite> currentSuites = new LinkedHashMap<Thread, OpenSuite>();
+        private final Map<Class< ? extends TestCase>, List<TestInfo>> resumed = new LinkedHashMap<Class< ? extends TestCase>, List<TestInfo>>();
+        private final Set<Class< ? extends TestCase>> retriedClasses = new HashSet<Class< ? extends TestCase>>();
+        private final Map<Class< ? extends TestCase>, OpenSuite> heldSuites = new LinkedHashMap<Class< ? extends TestCase>, OpenSuite>();
+
+        public synchronized void write(final TestInfo testInfo) {
+            final Thread thread = Thread.currentThread();
+            try {
+                OpenSuite suite = currentSuites.get(thread);
+                if (suite == null || testInfo.testCase != suite.counters.testCaseClass) {
+                    endOrHoldSuite(suite);
+                    suite = heldSuites.remove(testInfo.testCase);
+                    if (suite == null) {
+                        suite = startSuite(testInfo.testCase);
+                        final List<TestInfo> resumedTests = resumed.remove(testInfo.testCase);
+                        if (resumedTests != null) {
+                            for (final TestInfo resumedTest : resumedTests) {
+                                append(suite, resumedTest);
+                            }
+                        }
+                    }
+                    currentSuites.put(thread, suite);
+                }
+                append(suite, testInfo);
+            } catch (final IOException e) {
+                Log.e(TAG, "Error: " + e, e);
+            }
+        }
+
+        /**
+         * Writes the suite of the class the current thread ran last.
+         */
+        public synchronized void endCurrentSuite() {
+            try {
+                endOrHoldSuite(currentSuites.remove(Thread.currentThread()));
+            } catch (final IOException e) {
+                Log.e(TAG, "Error: " + e, e);
+            }
+        }
+
+        /**
+         * Keeps the suite of the class open until the end of the run, since a
+         * test of the class is held for retry.
+         */
+        public synchronized void holdClass(final Class< ? extends TestCase> clazz) {
+            retriedClasses.add(clazz);
+        }
+
+        /**
+         * Adds result of a test that will not be run, as it was recorded in
+         * the journal. It is written in the suite of its class.
+         */
+        public synchronized void addResumed(final TestInfo testInfo) {
+            List<TestInfo> resumedTests = resumed.get(testInfo.testCase);
+            if (resumedTests == null) {
+                resumedTests = new ArrayList<TestInfo>();
+                resumed.put(testInfo.testCase, resumedTests);
+            }
+            resumedTests.add(testInfo);
+        }
+
+        private void append(final OpenSuite suite, final TestInfo testInfo) throws IOException {
+            final TestCaseInfo counters = suite.counters;
+            writeTestInfo(suite.bodySerializer, testInfo, suite.reportFile.traces);
+            counters.tests++;
+            if (testInfo.error != null) {
+                counters.errors++;
+            }
+            if (testInfo.failure != null) {
+                counters.failures++;
+            }
+            counters.timeNanos += testInfo.timeNanos;
+            counters.pacingTimeNanos += testInfo.pacingTimeNanos;
+            counters.cleanupTimeNanos += testInfo.cleanupTimeNanos;
+            if (testInfo.heapGrowing) {
+                counters.heapGrowingTests++;
+            }
+            counters.memorySamplingNanos += testInfo.memorySamplingNanos;
+            addSuiteOutput(counters, testInfo);
+        }
+
+        public synchronized void close() {
+            try {
+                for (final OpenSuite suite : currentSuites.values()) {
+                    endSuite(suite);
+                }
+                currentSuites.clear();
+                for (final OpenSuite suite : heldSuites.values()) {
+                    endSuite(suite);
+                }
+                heldSuites.clear();
+                for (final List<TestInfo> resumedTests : resumed.values()) {
+                    final OpenSuite suite = startSuite(resumedTests.get(0).testCase);
+                    for (final TestInfo resumedTest : resumedTests) {
+                        append(suite, resumedTest);
+                    }
+                    endSuite(suite);
+                }
+                resumed.clear();
+            } catch (final IOException e) {
+                Log.e(TAG, "Error: " + e, e);
+            }
+            for (final ReportFile reportFile : openFiles.values()) {
+                closeReportFile(reportFile);
+            }
+            openFiles.clear();
+        }
+
+        private OpenSuite startSuite(final Class< ? extends TestCase> clazz) throws IOException {
+            final OpenSuite suite = new OpenSuite();
+            suite.counters = new TestCaseInfo();
+            suite.counters.testCaseClass = clazz;
+            suite.counters.thePackage = clazz.getPackage();
+            suite.body = new ByteArrayOutputStream();
+            suite.bodySerializer = new XmlReportWriter(suite.body, false);
+            suite.timestamp = getTimestamp();
+            final File f = getStreamingOutputFile(clazz);
+            suite.reportFile = openFiles.get(f);
+            if (suite.reportFile == null) {
+                suite.reportFile = openReportFile(f);
+                openFiles.put(f, suite.reportFile);
+            }
+            return suite;
+        }
+
+        private void endOrHoldSuite(final OpenSuite suite) throws IOException {
+            if (suite != null && retriedClasses.contains(suite.counters.testCaseClass)) {
+                heldSuites.put(suite.counters.testCaseClass, suite);
+            } else {
+                endSuite(suite);
+            }
+        }
+
+        private void endSuite(final OpenSuite suite) throws IOException {
+            if (suite == null) {
+                return;
+            }
+            final ReportFile reportFile = suite.reportFile;
+            suite.bodySerializer.flush();
+            writeSuiteStart(reportFile, suite.counters, suite.timestamp);
+            reportFile.serializer.raw(suite.body);
+            writeSuiteEnd(reportFile, suite.counters);
+            if (SPLIT_LEVEL_CLASS.equals(junitSplitLevel)) {
+                closeReportFile(openFiles.remove(reportFile.file));
+            }
+        }
+
+        private File getStreamingOutputFile(final Class< ? extends TestCase> clazz) {
+            if (SPLIT_LEVEL_CLASS.equals(junitSplitLevel)) {
+                return getJunitOutputFile(clazz);
+            } else if (SPLIT_LEVEL_NONE.equals(junitSplitLevel)) {
+                return getJunitOutputFile();
+            } else {
+                return getJunitOutputFile(clazz.getPackage());
+            }
+        }
+    }
+
+    /**
+     * Suite being streamed by one thread, or held until retries finish. The
+     * counters are of the tests written to the suite.
+     * 
+     */
+    private static class OpenSuite {
+        private TestCaseInfo counters;
+        private ByteArrayOutputStream body;
+        private XmlReportWriter bodySerializer;
+        private ReportFile reportFile;
+        private String timestamp;
+    }
+
+    private synchronized void registerTestInfo(final TestCase testCase, final RunningTest running) {
         final Class< ? extends TestCase> clazz = testCase.getClass();
         final Package thePackage = clazz.getPackage();
         final String name = testCase.getName();
-	StringBuilder sb = new StringBuilder();
-	sb.append(thePackage).append(".").append(clazz.getSimpleName()).append(".").append(name);
-	final String mapKey = sb.toString();
-        TestCaseInfo caseInfo = caseMap.get(thePackage);
+        TestPackageInfo packageInfo = packageMap.get(thePackage);
+        if (packageInfo == null) {
+            packageInfo = new TestPackageInfo();
+            packageInfo.thePackage = thePackage;
+            packageMap.put(thePackage, packageInfo);
+        }
+        TestCaseInfo caseInfo = packageInfo.testCaseList.get(clazz);
         if (caseInfo == null) {
             caseInfo = new TestCaseInfo();
-            caseInfo.testCaseClass = testCase.getClass();
+            caseInfo.testCaseClass = clazz;
             caseInfo.thePackage = thePackage;
-            caseMap.put(thePackage, caseInfo);
+            packageInfo.testCaseList.put(clazz, caseInfo);
         }
-        TestInfo ti = caseInfo.testMap.get(mapKey);
+        TestInfo ti = caseInfo.testMap.get(name);
         if (ti == null) {
             ti = new TestInfo();
             ti.name = name;
-            ti.testCase = testCase.getClass();
+            ti.testCase = clazz;
             ti.thePackage = thePackage;
-            caseInfo.testMap.put(mapKey, ti);
+            caseInfo.testMap.put(name, ti);
+            synchronized (caseInfo) {
+                caseInfo.tests++;
+            }
+            synchronized (packageInfo) {
+                packageInfo.tests++;
+            }
         }
-        return ti;
+        running.test = testCase;
+        running.packageInfo = packageInfo;
+        running.caseInfo = caseInfo;
+        running.testInfo = ti;
     }
 
-    private void startFile(final File outputFile) throws IOException {
+    private synchronized void removeTestInfo(final RunningTest running) {
+        running.caseInfo.testMap.remove(running.testInfo.name);
+    }
+
+    private ReportFile openReportFile(final File outputFile) throws IOException {
         Log.d(TAG, "Writing to file " + outputFile);
-        currentXmlSerializer = Xml.newSerializer();
-        currentFileWriter = new PrintWriter(outputFile, "UTF-8");
-        currentXmlSerializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-        currentXmlSerializer.setOutput(currentFileWriter);
-        currentXmlSerializer.startDocument("UTF-8", null);
-        currentXmlSerializer.startTag(null, TESTSUITES);
+        final XmlReportWriter serializer = new XmlReportWriter(reportOutput.open(outputFile), junitPrettyXml);
+        serializer.startDocument();
+        serializer.startTag(TESTSUITES);
+        return new ReportFile(outputFile, serializer);
     }
 
-    private void endFile() throws IOException {
-        Log.d(TAG, "closing file");
-        currentXmlSerializer.endTag(null, TESTSUITES);
-        currentXmlSerializer.endDocument();
-        currentFileWriter.flush();
-        currentFileWriter.close();
+    private void closeReportFile(final ReportFile reportFile) {
+        Log.d(TAG, "closing file " + reportFile.file);
+        try {
+            reportFile.serializer.endTag(TESTSUITES);
+            reportFile.serializer.endDocument();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error: " + e, e);
+        } finally {
+            try {
+                reportFile.serializer.close();
+            } catch (final IOException e) {
+                Log.e(TAG, "Error: " + e, e);
+            }
+        }
+    }
+
+    private void writeFile(final File outputFile, final Collection<TestCaseInfo> testCases) {
+        final long start = System.currentTimeMillis();
+        try {
+            final ReportFile reportFile = openReportFile(outputFile);
+            try {
+                for (final TestCaseInfo tc : testCases) {
+                    writeClassToFile(reportFile, tc);
+                }
+            } finally {
+                closeReportFile(reportFile);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error: " + e, e);
+        }
+        Log.d(TAG, "Written " + outputFile + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Writes the files on a bounded pool of threads. Each file is written by a
+     * single thread with its own serializer and writer.
+     */
+    private void writeFiles(final Map<File, List<TestCaseInfo>> files) {
+        final int threads = Math.max(1, Math.min(junitReportThreads, files.size()));
+        Log.d(TAG, "Writing " + files.size() + " files using " + threads + " threads");
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final Map.Entry<File, List<TestCaseInfo>> entry : files.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeFile(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing files", e);
+            Thread.currentThread().interrupt();
+        }
     }
 
     private String getTimestamp() {
@@ -318,113 +1409,211 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         return sdf.format(time);
     }
 
-    private void writeClassToFile(final TestCaseInfo tci) throws IllegalArgumentException, IllegalStateException,
-            IOException {
-        final Package thePackage = tci.thePackage;
-        final Class< ? extends TestCase> clazz = tci.testCaseClass;
-        final int tests = tci.testMap.size();
-        final String timestamp = getTimestamp();
-        int errors = 0;
-        int failures = 0;
-        int time = 0;
+    private void writeClassToFile(final ReportFile reportFile, final TestCaseInfo tci)
+            throws IllegalArgumentException, IllegalStateException, IOException {
+        writeSuiteStart(reportFile, tci, getTimestamp());
         for (final TestInfo testInfo : tci.testMap.values()) {
-            if (testInfo.error != null) {
-                errors++;
+            writeTestInfo(reportFile.serializer, testInfo, reportFile.traces);
+            addSuiteOutput(tci, testInfo);
+        }
+        writeSuiteEnd(reportFile, tci);
+    }
+
+    private void writeSuiteStart(final ReportFile reportFile, final TestCaseInfo tci, final String timestamp)
+            throws IOException {
+        final XmlReportWriter serializer = reportFile.serializer;
+        serializer.startTag(TESTSUITE);
+        serializer.attribute(ERRORS, Integer.toString(tci.errors));
+        serializer.attribute(FAILURES, Integer.toString(tci.failures));
+        serializer.attribute(NAME, tci.testCaseClass.getName());
+        serializer.attribute(PACKAGE, tci.thePackage == null ? "" : tci.thePackage.getName());
+        serializer.attribute(TESTS, Integer.toString(tci.tests));
+        serializer.attribute(TIME, formatTime(tci.timeNanos));
+        serializer.attribute(TIMESTAMP, timestamp);
+        if (pacer.isEnabled()) {
+            serializer.attribute(PACING, formatTime(tci.pacingTimeNanos));
+        }
+        serializer.attribute(CLEANUP, formatTime(tci.cleanupTimeNanos));
+        if (memorySampler != null) {
+            serializer.attribute(HEAP_GROWING_TESTS, Integer.toString(tci.heapGrowingTests));
+            serializer.attribute(MEMORY_SAMPLING, formatTime(tci.memorySamplingNanos));
+        }
+    }
+
+    private static void addSuiteOutput(final TestCaseInfo tci, final TestInfo testInfo) {
+        if (testInfo.suiteOut != null) {
+            tci.systemOut.add(testInfo.suiteOut);
+        }
+        if (testInfo.suiteErr != null) {
+            tci.systemErr.add(testInfo.suiteErr);
+        }
+    }
+
+    private void writeSuiteEnd(final ReportFile reportFile, final TestCaseInfo tci) throws IOException {
+        final XmlReportWriter serializer = reportFile.serializer;
+        if (shouldWriteProperties(reportFile)) {
+            reportFile.writeRaw(deviceProperties.getXmlFragment());
+        } else {
+            // the shard still has to be known when the reports are merged
+            reportFile.writeRaw(deviceProperties.getRunXmlFragment());
+        }
+        serializer.startTag(SYSTEM_OUT);
+        for (final OutputCapture.Captured captured : tci.systemOut) {
+            writeCaptured(serializer, captured);
+        }
+        serializer.endTag(SYSTEM_OUT);
+        serializer.startTag(SYSTEM_ERR);
+        for (final OutputCapture.Captured captured : tci.systemErr) {
+            writeCaptured(serializer, captured);
+        }
+        serializer.endTag(SYSTEM_ERR);
+        serializer.endTag(TESTSUITE);
+    }
+
+    private synchronized boolean shouldWriteProperties(final ReportFile reportFile) {
+        final boolean write;
+        if (PROPERTIES_MODE_RUN.equals(junitPropertiesMode)) {
+            write = !propertiesWrittenInRun;
+        } else if (PROPERTIES_MODE_FILE.equals(junitPropertiesMode)) {
+            write = !reportFile.propertiesWritten;
+        } else {
+            write = true;
+        }
+        reportFile.propertiesWritten = true;
+        propertiesWrittenInRun = true;
+        return write;
+    }
+
+    /**
+     * Formats time as seconds with microsecond precision. Unlike
+     * {@link Double#toString(double)} it never uses exponent notation, which
+     * short tests would otherwise get.
+     */
+    static String formatTime(final long nanos) {
+        final long micros = Math.abs(nanos) / 1000;
+        final String fraction = Long.toString(1000000 + micros % 1000000).substring(1);
+        return (nanos < 0 ? "-" : "") + micros / 1000000 + "." + fraction;
+    }
+
+    private void writeTestInfo(final XmlReportWriter serializer, final TestInfo testInfo,
+            final StackTraceFormatter.Occurrences traces) throws IOException {
+        serializer.startTag(TESTCASE);
+        serializer.attribute(CLASSNAME, testInfo.testCase.getName());
+        serializer.attribute(NAME, testInfo.name);
+        serializer.attribute(TIME, formatTime(testInfo.timeNanos));
+        if (pacer.isEnabled()) {
+            serializer.attribute(PACING, formatTime(testInfo.pacingTimeNanos));
+        }
+        if (junitPhaseTiming) {
+            if (testInfo.phasesMeasured) {
+                serializer.attribute(SET_UP, formatTime(testInfo.setUpNanos));
+                serializer.attribute(BODY, formatTime(testInfo.bodyNanos));
+                serializer.attribute(TEAR_DOWN, formatTime(testInfo.tearDownNanos));
             }
-            if (testInfo.failure != null) {
-                failures++;
-            }
-            time += testInfo.time;
-        }
-        currentXmlSerializer.startTag(null, TESTSUITE);
-        currentXmlSerializer.attribute(null, ERRORS, Integer.toString(errors));
-        currentXmlSerializer.attribute(null, FAILURES, Integer.toString(failures));
-        currentXmlSerializer.attribute(null, NAME, clazz.getName());
-        currentXmlSerializer.attribute(null, PACKAGE, thePackage == null ? "" : thePackage.getName());
-        currentXmlSerializer.attribute(null, TESTS, Integer.toString(tests));
-        currentXmlSerializer.attribute(null, TIME, Double.toString(time / 1000.0));
-        currentXmlSerializer.attribute(null, TIMESTAMP, timestamp);
-        for (final TestInfo testInfo : tci.testMap.values()) {
-            writeTestInfo(testInfo);
-        }
-        currentXmlSerializer.startTag(null, PROPERTIES);
-        writeProperty("android.Build.BOARD", Build.BOARD);
-        writeProperty("android.Build.BRAND", Build.BRAND);
-        writeProperty("android.Build.CPU_ABI", Build.CPU_ABI);
-        writeProperty("android.Build.DEVICE", Build.DEVICE);
-        writeProperty("android.Build.DISPLAY", Build.DISPLAY);
-        writeProperty("android.Build.FINGERPRINT", Build.FINGERPRINT);
-        writeProperty("android.Build.HOST", Build.HOST);
-        writeProperty("android.Build.ID", Build.ID);
-        writeProperty("android.Build.MANUFACTURER", Build.MANUFACTURER);
-        writeProperty("android.Build.MODEL", Build.MODEL);
-        writeProperty("android.Build.PRODUCT", Build.PRODUCT);
-        writeProperty("android.Build.TAGS", Build.TAGS);
-        writeProperty("android.Build.TYPE", Build.TYPE);
-        writeProperty("android.Build.USER", Build.USER);
-        if (Build.VERSION.SDK_INT >= 8) {
-            writeProperty("android.Build.BOOTLOADER", Build.BOOTLOADER);
-            writeProperty("android.Build.CPU_ABI2", Build.CPU_ABI2);
-            writeProperty("android.Build.HARDWARE", Build.HARDWARE);
-        }
-        if (Build.VERSION.SDK_INT >= 9) {
-            writeProperty("android.Build.SERIAL", Build.SERIAL);
-        }
-        writeProperty("android.Build.VERSION.CODENAME", Build.VERSION.CODENAME);
-        writeProperty("android.Build.VERSION.INCREMENTAL", Build.VERSION.INCREMENTAL);
-        writeProperty("android.Build.VERSION.RELEASE", Build.VERSION.RELEASE);
-        writeProperty("android.Build.VERSION.SDK_INT", Integer.toString(Build.VERSION.SDK_INT));
-        final Configuration configuration = getContext().getResources().getConfiguration();
-        writeProperty("android.Configuration.fontScale", Float.toString(configuration.fontScale));
-        writeProperty("android.Configuration.locale", String.valueOf(configuration.locale));
-        writeProperty("android.Configuration.orientation", translateOrientation(configuration.orientation));
-        writeProperty("android.Configuration.screenLayout.long", translateScreenLength(configuration.screenLayout));
-        writeProperty("android.Configuration.screenLayout.size", translateScreenSize(configuration.screenLayout));
-        if (Build.VERSION.SDK_INT >= 13) {
-            writeProperty("android.Configuration.screenHeightDp", Integer.toString(configuration.screenHeightDp));
-            writeProperty("android.Configuration.screenWidthDp", Integer.toString(configuration.screenWidthDp));
-            writeProperty("android.Configuration.smallestScreenWidthDp", Integer.toString(configuration.smallestScreenWidthDp));
-        }
-        final DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
-        writeProperty("android.DisplayMetrics.density", Float.toString(metrics.density));
-        writeProperty("android.DisplayMetrics.densityDpi", translateDensityDpi(metrics.densityDpi));
-        writeProperty("android.DisplayMetrics.heightPixels", Integer.toString(metrics.heightPixels));
-        writeProperty("android.DisplayMetrics.scaledDensity", Float.toString(metrics.scaledDensity));
-        writeProperty("android.DisplayMetrics.widthPixels", Integer.toString(metrics.widthPixels));
-        writeProperty("android.DisplayMetrics.xdpi", Float.toString(metrics.xdpi));
-        writeProperty("android.DisplayMetrics.ydpi", Float.toString(metrics.ydpi));
-        writeProperty("java.util.Locale.default", String.valueOf(Locale.getDefault()));
-        currentXmlSerializer.endTag(null, PROPERTIES);
-        currentXmlSerializer.startTag(null, SYSTEM_OUT);
-        currentXmlSerializer.endTag(null, SYSTEM_OUT);
-        currentXmlSerializer.startTag(null, SYSTEM_ERR);
-        currentXmlSerializer.endTag(null, SYSTEM_ERR);
-        currentXmlSerializer.endTag(null, TESTSUITE);
-    }
-
-    private void writeTestInfo(final TestInfo testInfo) throws IllegalArgumentException, IllegalStateException,
-            IOException {
-        currentXmlSerializer.startTag(null, TESTCASE);
-        currentXmlSerializer.attribute(null, CLASSNAME, testInfo.testCase.getName());
-        currentXmlSerializer.attribute(null, NAME, testInfo.name);
-        currentXmlSerializer.attribute(null, TIME, Double.toString(testInfo.time / 1000.0));
+            serializer.attribute(OVERHEAD, formatTime(testInfo.overheadNanos));
+            serializer.attribute(CPU, formatTime(testInfo.cpuNanos));
+        }
+        if (testInfo.memorySampled) {
+            serializer.attribute(HEAP, Long.toString(testInfo.heapDelta));
+            serializer.attribute(NATIVE_HEAP, Long.toString(testInfo.nativeHeapDelta));
+            serializer.attribute(ALLOC_COUNT, Long.toString(testInfo.allocCount));
+            serializer.attribute(ALLOC_SIZE, Long.toString(testInfo.allocSize));
+            serializer.attribute(GC_COUNT, Long.toString(testInfo.gcCount));
+            if (testInfo.heapGrowing) {
+                serializer.attribute(HEAP_GROWING, Boolean.TRUE.toString());
+            }
+        }
+        if (testInfo.benchmark != null) {
+            writeBenchmark(serializer, testInfo.benchmark);
+        }
         if (testInfo.error != null) {
-            currentXmlSerializer.startTag(null, ERROR);
-            final StringWriter sw = new StringWriter();
-            final PrintWriter pw = new PrintWriter(sw, true);
-            testInfo.error.printStackTrace(pw);
-            currentXmlSerializer.text(sw.toString());
-            currentXmlSerializer.endTag(null, ERROR);
+            serializer.startTag(ERROR);
+            serializer.text(getStackTrace(testInfo.error, testInfo, traces));
+            serializer.endTag(ERROR);
         }
         if (testInfo.failure != null) {
-            currentXmlSerializer.startTag(null, FAILURE);
-            final StringWriter sw = new StringWriter();
-            final PrintWriter pw = new PrintWriter(sw, true);
-            testInfo.failure.printStackTrace(pw);
-            currentXmlSerializer.text(sw.toString());
-            currentXmlSerializer.endTag(null, FAILURE);
+            serializer.startTag(FAILURE);
+            serializer.text(getStackTrace(testInfo.failure, testInfo, traces));
+            serializer.endTag(FAILURE);
         }
-        currentXmlSerializer.endTag(null, TESTCASE);
+        if (testInfo.attempts != null) {
+            final String errorTag = testInfo.flaky ? FLAKY_ERROR : RERUN_ERROR;
+            final String failureTag = testInfo.flaky ? FLAKY_FAILURE : RERUN_FAILURE;
+            for (final TestAttempt attempt : testInfo.attempts) {
+                if (attempt.error != null) {
+                    serializer.startTag(errorTag);
+                    serializer.text(getStackTrace(attempt.error, testInfo, traces));
+                    serializer.endTag(errorTag);
+                }
+                if (attempt.failure != null) {
+                    serializer.startTag(failureTag);
+                    serializer.text(getStackTrace(attempt.failure, testInfo, traces));
+                    serializer.endTag(failureTag);
+                }
+            }
+        }
+        if (testInfo.systemOut != null) {
+            serializer.startTag(SYSTEM_OUT);
+            writeCaptured(serializer, testInfo.systemOut);
+            serializer.endTag(SYSTEM_OUT);
+        }
+        if (testInfo.systemErr != null) {
+            serializer.startTag(SYSTEM_ERR);
+            writeCaptured(serializer, testInfo.systemErr);
+            serializer.endTag(SYSTEM_ERR);
+        }
+        serializer.endTag(TESTCASE);
+    }
+
+    private static void writeBenchmark(final XmlReportWriter serializer, final TestBenchmark.Result result)
+            throws IOException {
+        serializer.startTag(PROPERTIES);
+        writeProperty(serializer, BENCHMARK_WARMUP, Integer.toString(result.warmup));
+        writeProperty(serializer, BENCHMARK_ITERATIONS, Integer.toString(result.iterations));
+        writeProperty(serializer, BENCHMARK_MIN, Long.toString(result.minNanos));
+        writeProperty(serializer, BENCHMARK_MEDIAN, Long.toString(result.medianNanos));
+        writeProperty(serializer, BENCHMARK_P90, Long.toString(result.p90Nanos));
+        writeProperty(serializer, BENCHMARK_P99, Long.toString(result.p99Nanos));
+        writeProperty(serializer, BENCHMARK_OPS, String.format(Locale.US, "%.3f", result.opsPerSecond));
+        serializer.endTag(PROPERTIES);
+    }
+
+    private static void writeProperty(final XmlReportWriter serializer, final String name, final String value)
+            throws IOException {
+        serializer.startTag(PROPERTY);
+        serializer.attribute(NAME, name);
+        serializer.attribute(VALUE, value);
+        serializer.endTag(PROPERTY);
+    }
+
+    /**
+     * Writes captured output as text. Spilled output is copied from its file
+     * in chunks and the file is deleted.
+     */
+    private static void writeCaptured(final XmlReportWriter serializer, final OutputCapture.Captured captured)
+            throws IOException {
+        if (captured.file == null) {
+            serializer.text(captured.text);
+            return;
+        }
+        final Reader reader = new InputStreamReader(new FileInputStream(captured.file), "UTF-8");
+        try {
+            serializer.text(reader);
+        } finally {
+            reader.close();
+        }
+        captured.file.delete();
+    }
+
+    private String getStackTrace(final Throwable t, final TestInfo testInfo,
+            final StackTraceFormatter.Occurrences traces) {
+        if (traceFormatter != null) {
+            return traceFormatter.format(t, testInfo.testCase.getName() + "#" + testInfo.name, traces);
+        }
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw, true);
+        t.printStackTrace(pw);
+        return sw.toString();
     }
 
     private File getJunitOutputFile(final Package p) {
@@ -455,6 +1644,116 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         if (junitSingleFileName == null) {
             junitSingleFileName = DEFAULT_SINGLE_FILE_NAME;
         }
+        if (junitPacing == null) {
+            junitPacing = DEFAULT_PACING;
+        }
+        if (junitLive == null) {
+            junitLive = DEFAULT_LIVE;
+        }
+        if (junitLivePort <= 0) {
+            junitLivePort = DEFAULT_LIVE_PORT;
+        }
+        if (junitCompression == null) {
+            junitCompression = DEFAULT_COMPRESSION;
+        } else if (!ReportOutput.COMPRESSION_NONE.equals(junitCompression)
+                && !ReportOutput.COMPRESSION_GZIP.equals(junitCompression)
+                && !ReportOutput.COMPRESSION_ZIP.equals(junitCompression)) {
+            Log.w(TAG, "Invalid compression " + junitCompression + ", writing uncompressed files");
+            junitCompression = DEFAULT_COMPRESSION;
+        }
+        if (junitCompactOutput == null) {
+            junitCompactOutput = DEFAULT_COMPACT_OUTPUT;
+        } else if (!CompactResultWriter.FORMAT_NONE.equals(junitCompactOutput)
+                && !CompactResultWriter.FORMAT_NDJSON.equals(junitCompactOutput)
+                && !CompactResultWriter.FORMAT_BINARY.equals(junitCompactOutput)) {
+            Log.w(TAG, "Invalid compact output " + junitCompactOutput + ", not writing it");
+            junitCompactOutput = DEFAULT_COMPACT_OUTPUT;
+        }
+        if (junitTraceDepth < 0) {
+            junitTraceDepth = 0;
+        }
+        if (junitCaptureSize <= 0) {
+            junitCaptureSize = DEFAULT_CAPTURE_SIZE;
+        }
+        if (junitOrder == null) {
+            junitOrder = DEFAULT_ORDER;
+        } else if (!ORDER_ORIGINAL.equals(junitOrder) && !ORDER_FAILURES_FIRST.equals(junitOrder)) {
+            Log.w(TAG, "Invalid order " + junitOrder + ", running tests in original order");
+            junitOrder = DEFAULT_ORDER;
+        }
+        if (junitParallelThreads <= 0) {
+            junitParallelThreads = DEFAULT_PARALLEL_THREADS;
+        }
+        if (junitTestTimeout < 0) {
+            junitTestTimeout = 0;
+        }
+        if (junitSuiteTimeout < 0) {
+            junitSuiteTimeout = 0;
+        }
+        if (junitRetries < 0) {
+            junitRetries = 0;
+        }
+        if (junitBenchmarkWarmup < 0) {
+            junitBenchmarkWarmup = DEFAULT_BENCHMARK_WARMUP;
+        }
+        if (junitBenchmarkIterations <= 0) {
+            junitBenchmarkIterations = DEFAULT_BENCHMARK_ITERATIONS;
+        }
+        if (junitBenchmarkBatchSize <= 0) {
+            junitBenchmarkBatchSize = DEFAULT_BENCHMARK_BATCH_SIZE;
+        }
+        if (junitPropertiesMode == null) {
+            junitPropertiesMode = DEFAULT_PROPERTIES_MODE;
+        }
+        if (junitReportThreads <= 0) {
+            junitReportThreads = DEFAULT_REPORT_THREADS;
+        }
+        if (numShards <= 0) {
+            numShards = 1;
+        }
+        if (shardIndex < 0 || shardIndex >= numShards) {
+            Log.w(TAG, "Invalid shard index " + shardIndex + " of " + numShards + " shards, using 0");
+            shardIndex = 0;
+        }
+        if (junitJournalSyncInterval <= 0) {
+            junitJournalSyncInterval = DEFAULT_JOURNAL_SYNC_INTERVAL;
+        }
+        if (junitHistorySize <= 0) {
+            junitHistorySize = DEFAULT_HISTORY_SIZE;
+        }
+        junitHistorySize = Math.min(junitHistorySize, MAX_HISTORY_SIZE);
+        if (junitRegressionPercentile < 0 || junitRegressionPercentile > 100) {
+            junitRegressionPercentile = DEFAULT_REGRESSION_PERCENTILE;
+        }
+        if (junitRegressionRatio <= 0) {
+            junitRegressionRatio = DEFAULT_REGRESSION_RATIO;
+        }
+    }
+
+    private int getIntegerArgument(final Bundle arguments, final String tag, final int defaultValue) {
+        final String tagString = arguments.getString(tag);
+        if (tagString == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(tagString);
+        } catch (final NumberFormatException e) {
+            Log.w(TAG, "Invalid value of " + tag + ": " + tagString + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private double getDoubleArgument(final Bundle arguments, final String tag, final double defaultValue) {
+        final String tagString = arguments.getString(tag);
+        if (tagString == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(tagString);
+        } catch (final NumberFormatException e) {
+            Log.w(TAG, "Invalid value of " + tag + ": " + tagString + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     private boolean getBooleanArgument(final Bundle arguments, final String tag, final boolean defaultValue) {
@@ -470,28 +1769,155 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         Log.d(TAG, "Creating the Test Runner with arguments: " + arguments.keySet());
         if (arguments != null) {
             junitOutputEnabled = getBooleanArgument(arguments, "junitXmlOutput", true);
+            junitCompactOutput = arguments.getString("junitCompactOutput");
             junitOutputDirectory = arguments.getString("junitOutputDirectory");
             junitOutputFilePostfix = arguments.getString("junitOutputFilePostfix");
             junitNoPackagePrefix = arguments.getString("junitNoPackagePrefix");
             junitSplitLevel = arguments.getString("junitSplitLevel");
             junitSingleFileName = arguments.getString("junitSingleFileName");
+            junitStreamOutput = getBooleanArgument(arguments, "junitStreamOutput", false);
+            junitPacing = arguments.getString("junitPacing");
+            junitPropertiesMode = arguments.getString("junitPropertiesMode");
+            junitReportThreads = getIntegerArgument(arguments, "junitReportThreads", DEFAULT_REPORT_THREADS);
+            shardIndex = getIntegerArgument(arguments, "shardIndex", 0);
+            numShards = getIntegerArgument(arguments, "numShards", 1);
+            shardTimingsFile = arguments.getString("shardTimingsFile");
+            junitHistory = getBooleanArgument(arguments, "junitHistory", false);
+            junitHistorySize = getIntegerArgument(arguments, "junitHistorySize", DEFAULT_HISTORY_SIZE);
+            junitRegressionPercentile = getIntegerArgument(arguments, "junitRegressionPercentile",
+                    DEFAULT_REGRESSION_PERCENTILE);
+            junitRegressionRatio = getDoubleArgument(arguments, "junitRegressionRatio", DEFAULT_REGRESSION_RATIO);
+            junitPhaseTiming = getBooleanArgument(arguments, "junitPhaseTiming", false);
+            junitMemoryMetrics = getBooleanArgument(arguments, "junitMemoryMetrics", false);
+            junitJournal = getBooleanArgument(arguments, "junitJournal", false);
+            junitJournalSyncInterval = getIntegerArgument(arguments, "junitJournalSyncInterval",
+                    DEFAULT_JOURNAL_SYNC_INTERVAL);
+            resumeFromJournal = getBooleanArgument(arguments, "resumeFromJournal", false);
+            junitLive = arguments.getString("junitLive");
+            junitLivePort = getIntegerArgument(arguments, "junitLivePort", DEFAULT_LIVE_PORT);
+            junitCompression = arguments.getString("junitCompression");
+            junitPrettyXml = getBooleanArgument(arguments, "junitPrettyXml", true);
+            junitTraceDedup = getBooleanArgument(arguments, "junitTraceDedup", false);
+            junitTraceCollapse = getBooleanArgument(arguments, "junitTraceCollapse", false);
+            junitTraceDepth = getIntegerArgument(arguments, "junitTraceDepth", 0);
+            junitCaptureOutput = getBooleanArgument(arguments, "junitCaptureOutput", false);
+            junitCaptureSize = getIntegerArgument(arguments, "junitCaptureSize", DEFAULT_CAPTURE_SIZE);
+            junitCaptureLogcat = getBooleanArgument(arguments, "junitCaptureLogcat", false);
+            junitOrder = arguments.getString("junitOrder");
+            failFast = getBooleanArgument(arguments, "failFast", false);
+            junitParallelThreads = getIntegerArgument(arguments, "junitParallelThreads", DEFAULT_PARALLEL_THREADS);
+            junitParallelPackages = arguments.getString("junitParallelPackages");
+            junitTestTimeout = getIntegerArgument(arguments, "junitTestTimeout", 0);
+            junitSuiteTimeout = getIntegerArgument(arguments, "junitSuiteTimeout", 0);
+            junitRetries = getIntegerArgument(arguments, "junitRetries", 0);
+            junitBenchmark = getBooleanArgument(arguments, "junitBenchmark", false);
+            junitBenchmarkWarmup = getIntegerArgument(arguments, "junitBenchmarkWarmup", DEFAULT_BENCHMARK_WARMUP);
+            junitBenchmarkIterations = getIntegerArgument(arguments, "junitBenchmarkIterations",
+                    DEFAULT_BENCHMARK_ITERATIONS);
+            junitBenchmarkBatchSize = getIntegerArgument(arguments, "junitBenchmarkBatchSize",
+                    DEFAULT_BENCHMARK_BATCH_SIZE);
             justCount = getBooleanArgument(arguments, "count", false);
             logOnly = getBooleanArgument(arguments, "log", false);
         }
         setDefaultParameters();
+        if (junitParallelPackages != null) {
+            for (final String p : junitParallelPackages.split(",")) {
+                if (p.trim().length() > 0) {
+                    parallelPackages.add(p.trim());
+                }
+            }
+        }
+        pacer = new TestPacer(junitPacing);
+        reportOutput = new ReportOutput(junitCompression, new File(junitOutputDirectory));
+        if (junitTraceDedup || junitTraceCollapse || junitTraceDepth > 0) {
+            traceFormatter = new StackTraceFormatter(junitTraceDedup, junitTraceCollapse, junitTraceDepth);
+        }
+        final Map<String, String> runProperties = new LinkedHashMap<String, String>();
+        if (numShards > 1) {
+            sharder = new TestSharder(shardIndex, numShards, shardTimingsFile == null ? null : new File(
+                    shardTimingsFile));
+            runProperties.put("instrumentation.shardIndex", Integer.toString(shardIndex));
+            runProperties.put("instrumentation.numShards", Integer.toString(numShards));
+        }
+        deviceProperties = DeviceProperties.capture(getContext(), runProperties);
         logParameters();
         createDirectoryIfNotExist();
         deleteOldFiles();
+        if (junitHistory) {
+            durationHistory = DurationHistory.load(new File(junitOutputDirectory, HISTORY_FILE_NAME), junitHistorySize);
+        }
+        if (junitJournal || resumeFromJournal) {
+            openJournal();
+        }
+        if (ORDER_FAILURES_FIRST.equals(junitOrder)) {
+            priorRunOrder = PriorRunOrder.load(new File(junitOutputDirectory, ORDER_FILE_NAME));
+        }
+        if (!LiveResultPublisher.LIVE_OFF.equals(junitLive) && !justCount) {
+            livePublisher = new LiveResultPublisher(this, junitLive, junitLivePort);
+            livePublisher.start();
+        }
         super.onCreate(arguments);
     }
 
+    private void openJournal() {
+        final File f = new File(junitOutputDirectory, JOURNAL_FILE_NAME);
+        if (resumeFromJournal) {
+            journalEntries = ResultJournal.read(f);
+        }
+        journal = new ResultJournal(f, junitJournalSyncInterval);
+        try {
+            journal.open(resumeFromJournal);
+        } catch (final IOException e) {
+            Log.e(TAG, "Error opening journal " + f + ": " + e, e);
+            journal = null;
+        }
+    }
+
     private void logParameters() {
         Log.d(TAG, "Test runner is running with the following parameters:");
+        Log.d(TAG, "junitCompactOutput: " + junitCompactOutput);
         Log.d(TAG, "junitOutputDirectory: " + junitOutputDirectory);
         Log.d(TAG, "junitOutputFilePostfix: " + junitOutputFilePostfix);
         Log.d(TAG, "junitNoPackagePrefix: " + junitNoPackagePrefix);
         Log.d(TAG, "junitSplitLevel: " + junitSplitLevel);
         Log.d(TAG, "junitSingleFileName: " + junitSingleFileName);
+        Log.d(TAG, "junitStreamOutput: " + junitStreamOutput);
+        Log.d(TAG, "junitPacing: " + junitPacing);
+        Log.d(TAG, "junitPropertiesMode: " + junitPropertiesMode);
+        Log.d(TAG, "junitReportThreads: " + junitReportThreads);
+        Log.d(TAG, "shardIndex: " + shardIndex);
+        Log.d(TAG, "numShards: " + numShards);
+        Log.d(TAG, "shardTimingsFile: " + shardTimingsFile);
+        Log.d(TAG, "junitHistory: " + junitHistory);
+        Log.d(TAG, "junitHistorySize: " + junitHistorySize);
+        Log.d(TAG, "junitRegressionPercentile: " + junitRegressionPercentile);
+        Log.d(TAG, "junitRegressionRatio: " + junitRegressionRatio);
+        Log.d(TAG, "junitPhaseTiming: " + junitPhaseTiming);
+        Log.d(TAG, "junitMemoryMetrics: " + junitMemoryMetrics);
+        Log.d(TAG, "junitJournal: " + junitJournal);
+        Log.d(TAG, "junitJournalSyncInterval: " + junitJournalSyncInterval);
+        Log.d(TAG, "resumeFromJournal: " + resumeFromJournal);
+        Log.d(TAG, "junitLive: " + junitLive);
+        Log.d(TAG, "junitLivePort: " + junitLivePort);
+        Log.d(TAG, "junitCompression: " + junitCompression);
+        Log.d(TAG, "junitPrettyXml: " + junitPrettyXml);
+        Log.d(TAG, "junitTraceDedup: " + junitTraceDedup);
+        Log.d(TAG, "junitTraceCollapse: " + junitTraceCollapse);
+        Log.d(TAG, "junitTraceDepth: " + junitTraceDepth);
+        Log.d(TAG, "junitCaptureOutput: " + junitCaptureOutput);
+        Log.d(TAG, "junitCaptureSize: " + junitCaptureSize);
+        Log.d(TAG, "junitCaptureLogcat: " + junitCaptureLogcat);
+        Log.d(TAG, "junitOrder: " + junitOrder);
+        Log.d(TAG, "failFast: " + failFast);
+        Log.d(TAG, "junitParallelThreads: " + junitParallelThreads);
+        Log.d(TAG, "junitParallelPackages: " + junitParallelPackages);
+        Log.d(TAG, "junitTestTimeout: " + junitTestTimeout);
+        Log.d(TAG, "junitSuiteTimeout: " + junitSuiteTimeout);
+        Log.d(TAG, "junitRetries: " + junitRetries);
+        Log.d(TAG, "junitBenchmark: " + junitBenchmark);
+        Log.d(TAG, "junitBenchmarkWarmup: " + junitBenchmarkWarmup);
+        Log.d(TAG, "junitBenchmarkIterations: " + junitBenchmarkIterations);
+        Log.d(TAG, "junitBenchmarkBatchSize: " + junitBenchmarkBatchSize);
     }
     
     private boolean createDirectoryIfNotExist(){
@@ -510,7 +1936,11 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
         final File[] filesToDelete = new File(junitOutputDirectory).listFiles(new FilenameFilter() {
             @Override
             public boolean accept(final File dir, final String filename) {
-                return filename.endsWith(junitOutputFilePostfix) || filename.equals(junitSingleFileName);
+                final String name = filename.endsWith(ReportOutput.GZIP_EXTENSION) ? filename.substring(0,
+                        filename.length() - ReportOutput.GZIP_EXTENSION.length()) : filename;
+                return name.endsWith(junitOutputFilePostfix) || name.equals(junitSingleFileName)
+                        || name.equals(ReportOutput.ZIP_FILE_NAME) || name.equals(CompactResultWriter.NDJSON_FILE_NAME)
+                        || name.equals(CompactResultWriter.BINARY_FILE_NAME) || filename.equals(REGRESSIONS_FILE_NAME);
             }
         });
         if (filesToDelete != null){
@@ -523,8 +1953,36 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
 
     @Override
     public void finish(final int resultCode, final Bundle results) {
-        if (outputEnabled) {
+        synchronized (this) {
+            // the watchdog may finish the run while the instrumentation
+            // thread is still in a test
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        if (watchdog != null) {
+            watchdog.close();
+        }
+        Log.d(TAG, "Time spent in test case cleanup: " + cleaner.getTotalTimeNanos() / NANOS_PER_MILLI + " ms");
+        if (memorySampler != null) {
+            memorySampler.stop();
+        }
+        if (outputCapture != null) {
+            outputCapture.stop();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (livePublisher != null) {
+            livePublisher.close();
+        }
+        if (outputEnabled && streamingWriter != null) {
+            Log.d(TAG, "Closing streamed output");
+            streamingWriter.close();
+        } else if (outputEnabled) {
             Log.d(TAG, "Post processing");
+            final long start = System.currentTimeMillis();
             if (SPLIT_LEVEL_PACKAGE.equals(junitSplitLevel)) {
                 processPackageLevelSplit();
             } else if (SPLIT_LEVEL_CLASS.equals(junitSplitLevel)) {
@@ -535,137 +1993,327 @@ public class PolideaInstrumentationTestRunner extends InstrumentationTestRunner
                 Log.d(TAG, "Invalid split level " + junitSplitLevel + ", falling back to package level split.");
                 processPackageLevelSplit();
             }
+            Log.d(TAG, "Post processing finished in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        if (compactWriter != null) {
+            compactWriter.close();
+        }
+        if (outputEnabled || compactWriter != null) {
+            reportOutput.close();
+            if (results != null) {
+                results.putLong("junitReportBytes", reportOutput.getUncompressedBytes());
+                results.putLong("junitReportStoredBytes", reportOutput.getCompressedBytes());
+            }
+        }
+        if (junitRetries > 0 && results != null) {
+            results.putInt("junitFlakyTests", flakyTests);
+        }
+        if (priorRunOrder != null) {
+            priorRunOrder.save();
+        }
+        if (durationHistory != null) {
+            writeRegressions(durationHistory.findRegressions(junitRegressionRatio, junitRegressionPercentile));
+            durationHistory.save();
         }
         super.finish(resultCode, results);
     }
 
-    private void processNoSplit() {
+    private void writeRegressions(final List<DurationHistory.Regression> regressions) {
+        Log.d(TAG, "Performance regressions: " + regressions.size());
+        final File f = new File(junitOutputDirectory, REGRESSIONS_FILE_NAME);
         try {
-            final File f = getJunitOutputFile();
-            startFile(f);
+            final XmlReportWriter serializer = new XmlReportWriter(new FileOutputStream(f), true);
             try {
-                for (final Package p : caseMap.keySet()) {
-                    try {
-                        final TestCaseInfo tc = caseMap.get(p);
-                        writeClassToFile(tc);
-                    } catch (final IOException e) {
-                        Log.e(TAG, "Error: " + e, e);
-                    }
+                serializer.startDocument();
+                serializer.startTag(REGRESSIONS);
+                serializer.attribute(PERCENTILE, Integer.toString(junitRegressionPercentile));
+                serializer.attribute(RATIO, Double.toString(junitRegressionRatio));
+                for (final DurationHistory.Regression regression : regressions) {
+                    serializer.startTag(TESTCASE);
+                    serializer.attribute(CLASSNAME, regression.className);
+                    serializer.attribute(NAME, regression.name);
+                    serializer.attribute(TIME, formatTime(regression.time * NANOS_PER_MILLI));
+                    serializer.attribute(BASELINE, formatTime(regression.baseline * NANOS_PER_MILLI));
+                    serializer.attribute(SAMPLES, Integer.toString(regression.samples));
+                    serializer.endTag(TESTCASE);
                 }
+                serializer.endTag(REGRESSIONS);
+                serializer.endDocument();
             } finally {
-                endFile();
+                serializer.close();
             }
         } catch (final IOException e) {
             Log.e(TAG, "Error: " + e, e);
         }
     }
 
+    private void processNoSplit() {
+        final List<TestCaseInfo> testCases = new ArrayList<TestCaseInfo>();
+        for (final TestPackageInfo tp : packageMap.values()) {
+            testCases.addAll(tp.testCaseList.values());
+        }
+        writeFile(getJunitOutputFile(), testCases);
+    }
+
     private void processPackageLevelSplit() {
-        Log.d(TAG, "Packages: " + caseMap.size());
-        for (final Package p : caseMap.keySet()) {
-            Log.d(TAG, "Processing package " + p);
-            try {
-                final File f = getJunitOutputFile(p);
-                startFile(f);
-                try {
-                    final TestCaseInfo tc = caseMap.get(p);
-                    writeClassToFile(tc);
-                } finally {
-                    endFile();
-                }
-            } catch (final IOException e) {
-                Log.e(TAG, "Error: " + e, e);
-            }
+        Log.d(TAG, "Packages: " + packageMap.size());
+        final Map<File, List<TestCaseInfo>> files = new LinkedHashMap<File, List<TestCaseInfo>>();
+        for (final TestPackageInfo tp : packageMap.values()) {
+            Log.d(TAG, "Processing package " + tp.thePackage + ": " + tp.tests + " tests, " + tp.errors + " errors, "
+                    + tp.failures + " failures");
+            files.put(getJunitOutputFile(tp.thePackage), new ArrayList<TestCaseInfo>(tp.testCaseList.values()));
         }
+        writeFiles(files);
     }
 
     private void processClassLevelSplit() {
-        for (final Package p : caseMap.keySet()) {
-            try {
-                final TestCaseInfo tc = caseMap.get(p);
-                final File f = getJunitOutputFile(tc.testCaseClass);
-                startFile(f);
-                try {
-                    writeClassToFile(tc);
-                } finally {
-                    endFile();
-                }
-            } catch (final IOException e) {
-                Log.e(TAG, "Error: " + e, e);
+        final Map<File, List<TestCaseInfo>> files = new LinkedHashMap<File, List<TestCaseInfo>>();
+        for (final TestPackageInfo tp : packageMap.values()) {
+            for (final TestCaseInfo tc : tp.testCaseList.values()) {
+                files.put(getJunitOutputFile(tc.testCaseClass), Collections.singletonList(tc));
             }
         }
+        writeFiles(files);
     }
 
-    private void writeProperty(final String name, final String value) throws IOException {
-        currentXmlSerializer.startTag(null, PROPERTY);
-        currentXmlSerializer.attribute(null, NAME, name);
-        currentXmlSerializer.attribute(null, VALUE, value);
-        currentXmlSerializer.endTag(null, PROPERTY);
+    /**
+     * Decides which tests are run, before any of them starts.
+     */
+    private Test prepareTest(final Test test) {
+        Test prepared = test;
+        if (sharder != null) {
+            prepared = sharder.shard(prepared);
+        }
+        if (livePublisher != null) {
+            livePublisher.runStarted(prepared.countTestCases());
+        }
+        if (journalEntries != null && !journalEntries.isEmpty()) {
+            prepared = skipJournaledTests(prepared);
+        }
+        if (priorRunOrder != null) {
+            prepared = priorRunOrder.order(prepared);
+        }
+        // counting and logging results do not run the tests
+        if (junitParallelThreads > 1 && !justCount && !logOnly) {
+            prepared = parallelize(prepared);
+        }
+        if (junitRetries > 0 && testListener != null) {
+            prepared = addRetries(prepared);
+        }
+        return prepared;
     }
 
-    private static String translateDensityDpi(final int densityDpi) {
-        switch (densityDpi) {
-        case DisplayMetrics.DENSITY_XXHIGH:
-            return "xxhdpi";
-        case DisplayMetrics.DENSITY_XHIGH:
-            return "xhdpi";
-        case DisplayMetrics.DENSITY_HIGH:
-            return "hdpi";
-        case DisplayMetrics.DENSITY_TV:
-            return "tvdpi";
-        case DisplayMetrics.DENSITY_MEDIUM:
-            return "mdpi";
-        case DisplayMetrics.DENSITY_LOW:
-            return "ldpi";
-        }
-        return Integer.toString(densityDpi);
+    /**
+     * Adds the batch running failed tests again at the end of the tests.
+     */
+    private Test addRetries(final Test test) {
+        final TestSuite suite = new TestSuite(TestSharder.getName(test));
+        suite.addTest(test);
+        suite.addTest(new RetryTestBatch(junitRetries) {
+            @Override
+            protected List<TestCase> takeFailedTests() {
+                return testListener.takeFailedTests();
+            }
+
+            @Override
+            protected void prepareRetry(final TestCase retry) {
+                // as the instrumentation does for the tests it runs
+                if (retry instanceof AndroidTestCase) {
+                    ((AndroidTestCase) retry).setContext(getTargetContext());
+                }
+                if (retry instanceof InstrumentationTestCase) {
+                    ((InstrumentationTestCase) retry).injectInstrumentation(PolideaInstrumentationTestRunner.this);
+                }
+            }
+
+            @Override
+            protected void retryStarted(final TestCase retry) {
+                testListener.startRetry(retry);
+            }
+
+            @Override
+            protected void retriesFinished() {
+                testListener.finishRetries();
+            }
+        });
+        return suite;
     }
 
-    private static String translateScreenLength(final int screenLayout) {
-        switch (screenLayout & Configuration.SCREENLAYOUT_LONG_MASK) {
-        case Configuration.SCREENLAYOUT_LONG_YES:
-            return "long";
-        case Configuration.SCREENLAYOUT_LONG_NO:
-            return "notlong";
-        default:
-            return "undefined";
+    /**
+     * Moves tests of parallel-safe classes to a batch run on a pool of threads,
+     * ahead of the remaining tests, which are run on the instrumentation
+     * thread.
+     */
+    private Test parallelize(final Test test) {
+        final List<Test> tests = new ArrayList<Test>();
+        TestSharder.collectTests(test, tests);
+        final Map<Class< ? >, List<Test>> parallel = new LinkedHashMap<Class< ? >, List<Test>>();
+        final List<Test> serial = new ArrayList<Test>();
+        for (final Test t : tests) {
+            if (isParallelSafe(t.getClass())) {
+                List<Test> classTests = parallel.get(t.getClass());
+                if (classTests == null) {
+                    classTests = new ArrayList<Test>();
+                    parallel.put(t.getClass(), classTests);
+                }
+                classTests.add(t);
+            } else {
+                serial.add(t);
+            }
+        }
+        if (parallel.isEmpty()) {
+            Log.d(TAG, "No parallel-safe test classes");
+            return test;
         }
+        Log.d(TAG, "Running " + (tests.size() - serial.size()) + " tests of " + parallel.size()
+                + " classes in parallel, " + serial.size() + " tests serially");
+        final TestSuite suite = new TestSuite(TestSharder.getName(test));
+        suite.addTest(new ParallelTestBatch(new ArrayList<List<Test>>(parallel.values()), junitParallelThreads,
+                testListener) {
+            @Override
+            protected TestResult createResult() {
+                return phaseTimer != null || benchmark != null || failFast ? new RunnerTestResult() : new TestResult();
+            }
+
+            @Override
+            protected void threadStarted() {
+                if (outputCapture != null) {
+                    outputCapture.attachThread();
+                }
+            }
+
+            @Override
+            protected void classFinished() {
+                if (streamingWriter != null) {
+                    streamingWriter.endCurrentSuite();
+                }
+            }
+
+            @Override
+            protected void threadFinished() {
+                if (outputCapture != null) {
+                    outputCapture.detachThread();
+                }
+            }
+        });
+        for (final Test t : serial) {
+            suite.addTest(t);
+        }
+        return suite;
     }
 
-    private static String translateScreenSize(final int screenLayout) {
-        switch (screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK) {
-        case Configuration.SCREENLAYOUT_SIZE_XLARGE:
-            return "xlarge";
-        case Configuration.SCREENLAYOUT_SIZE_LARGE:
-            return "large";
-        case Configuration.SCREENLAYOUT_SIZE_NORMAL:
-            return "normal";
-        case Configuration.SCREENLAYOUT_SIZE_SMALL:
-            return "small";
-        default:
-            return "undefined";
+    private boolean isParallelSafe(final Class< ? > clazz) {
+        if (!TestCase.class.isAssignableFrom(clazz) || AndroidTestCase.class.isAssignableFrom(clazz)
+                || InstrumentationTestCase.class.isAssignableFrom(clazz)) {
+            return false;
+        }
+        if (clazz.isAnnotationPresent(ParallelSafe.class)) {
+            return true;
+        }
+        final String className = clazz.getName();
+        for (final String p : parallelPackages) {
+            if (className.startsWith(p + ".")) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private static String translateOrientation(final int orientation) {
-        switch (orientation) {
-        case Configuration.ORIENTATION_PORTRAIT:
-            return "portrait";
-        case Configuration.ORIENTATION_LANDSCAPE:
-            return "landscape";
-        default:
-            return "undefined";
+    /**
+     * Skips tests that passed or crashed the process according to the
+     * journal, reporting their recorded results instead.
+     */
+    private Test skipJournaledTests(final Test test) {
+        final List<Test> tests = new ArrayList<Test>();
+        TestSharder.collectTests(test, tests);
+        final TestSuite suite = new TestSuite(TestSharder.getName(test));
+        int skipped = 0;
+        for (final Test t : tests) {
+            if (t instanceof TestCase) {
+                final TestCase testCase = (TestCase) t;
+                final ResultJournal.Entry entry = journalEntries.get(ResultJournal.getKey(
+                        testCase.getClass().getName(), testCase.getName()));
+                if (entry != null && (entry.isPassed() || entry.isCrashed())) {
+                    if (testListener != null) {
+                        testListener.recordResumed(testCase, entry);
+                    }
+                    skipped++;
+                    continue;
+                }
+            }
+            suite.addTest(t);
         }
+        Log.d(TAG, "Skipped " + skipped + " tests recorded in the journal");
+        return suite;
     }
 
     @Override
     protected AndroidTestRunner getAndroidTestRunner() {
         Log.d(TAG, "Getting android test runner");
-        runner = super.getAndroidTestRunner();
-        if (junitOutputEnabled && !justCount && !logOnly) {
-            Log.d(TAG, "JUnit test output enabled");
-            outputEnabled = true;
-            runner.addTestListener(new JunitTestListener());
+        runner = new AndroidTestRunner() {
+            @Override
+            public void setTest(final Test test) {
+                super.setTest(prepareTest(test));
+            }
+
+            @Override
+            protected TestResult createTestResult() {
+                final TestResult result = super.createTestResult();
+                // test results that skip execution are left alone
+                if ((phaseTimer != null || benchmark != null || failFast) && result.getClass() == TestResult.class) {
+                    return new RunnerTestResult();
+                }
+                return result;
+            }
+        };
+        final boolean compactOutput = !CompactResultWriter.FORMAT_NONE.equals(junitCompactOutput);
+        if ((junitOutputEnabled || compactOutput) && !justCount && !logOnly) {
+            Log.d(TAG, "JUnit test output enabled: [ junitOutputEnabled : " + junitOutputEnabled
+                    + ", junitCompactOutput : " + junitCompactOutput + " ]");
+            outputEnabled = junitOutputEnabled;
+            if (junitStreamOutput && outputEnabled) {
+                streamingWriter = new StreamingReportWriter();
+            }
+            if (compactOutput) {
+                compactWriter = new CompactResultWriter(junitCompactOutput);
+                try {
+                    compactWriter.open(reportOutput, new File(junitOutputDirectory));
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error: " + e, e);
+                    compactWriter = null;
+                }
+            }
+            testListener = new JunitTestListener();
+            if (junitPhaseTiming) {
+                phaseTimer = new TestPhaseTimer();
+            }
+            if (junitBenchmark) {
+                benchmark = new TestBenchmark(junitBenchmarkWarmup, junitBenchmarkIterations,
+                        junitBenchmarkBatchSize);
+            }
+            if (junitMemoryMetrics) {
+                memorySampler = new MemorySampler();
+                memorySampler.start();
+            }
+            if (junitCaptureOutput) {
+                outputCapture = new OutputCapture(junitCaptureSize, getContext().getCacheDir(), junitCaptureLogcat);
+                outputCapture.start();
+            }
+            if (junitTestTimeout > 0 || junitSuiteTimeout > 0) {
+                watchdog = new TestWatchdog() {
+                    @Override
+                    protected void testTimedOut(final Object owner, final String description) {
+                        testListener.recordTimeout((RunningTest) owner, description);
+                    }
+
+                    @Override
+                    protected void testStuck(final Object owner) {
+                        testListener.abortRun((RunningTest) owner);
+                    }
+                };
+                watchdog.start();
+            }
+            runner.addTestListener(testListener);
         } else {
             outputEnabled = false;
             Log.d(TAG, "JUnit test output disabled: [ junitOutputEnabled : " + junitOutputEnabled + ", justCount : "
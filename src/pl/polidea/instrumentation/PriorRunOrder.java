@@ -0,0 +1,241 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+import android.util.Log;
+
+/**
+ * Orders tests by the results of previous runs, so that the results that
+ * matter most arrive first: classes with tests that failed last time they ran
+ * (fastest first), then classes with tests that never ran before (in their
+ * original order), then the rest, longest first. Tests of a class are kept
+ * together - the streamed reports expect a class to be run in one go - and
+ * ordered the same way within the class. The file keeps the last result of
+ * each test (keyed by "&lt;class name&gt;#&lt;test name&gt;"):
+ *
+ * <pre>
+ * int magic, int version, int number of tests
+ * for each test: UTF key, boolean failed, int duration in ms
+ * </pre>
+ *
+ * Tests that were not run in the current run keep their last result.
+ *
+ */
+class PriorRunOrder {
+
+    private static final String TAG = PriorRunOrder.class.getSimpleName();
+    private static final int MAGIC = 0x504a4f52;
+    private static final int VERSION = 1;
+
+    /**
+     * Last result of a test.
+     */
+    private static class Result {
+        private final boolean failed;
+        private final int time;
+
+        Result(final boolean failed, final int time) {
+            this.failed = failed;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Tests of a class, in the order of priority.
+     */
+    private static class ClassTests {
+        private final List<Test> failed = new ArrayList<Test>();
+        private final List<Test> added = new ArrayList<Test>();
+        private final List<Test> passed = new ArrayList<Test>();
+        private long time;
+    }
+
+    private final File file;
+    private final Map<String, Result> results;
+
+    private PriorRunOrder(final File file, final Map<String, Result> results) {
+        this.file = file;
+        this.results = results;
+    }
+
+    /**
+     * Reads the results. Missing or unreadable file results in no results, so
+     * that all tests are new.
+     *
+     * @param file
+     *            results file
+     * @return the order
+     */
+    static PriorRunOrder load(final File file) {
+        final Map<String, Result> results = new HashMap<String, Result>();
+        if (file.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                        throw new IOException("Unknown format");
+                    }
+                    final int tests = in.readInt();
+                    for (int i = 0; i < tests; i++) {
+                        final String key = in.readUTF();
+                        final boolean failed = in.readBoolean();
+                        results.put(key, new Result(failed, in.readInt()));
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Error reading results from " + file + ", treating all tests as new: " + e, e);
+                results.clear();
+            }
+        }
+        Log.d(TAG, "Read results of " + results.size() + " tests from " + file);
+        return new PriorRunOrder(file, results);
+    }
+
+    /**
+     * @param test
+     *            all tests to run
+     * @return suite containing the same tests in the order of priority
+     */
+    synchronized Test order(final Test test) {
+        final List<Test> tests = new ArrayList<Test>();
+        TestSharder.collectTests(test, tests);
+        final Map<Class< ? >, ClassTests> classes = new LinkedHashMap<Class< ? >, ClassTests>();
+        for (final Test t : tests) {
+            ClassTests classTests = classes.get(t.getClass());
+            if (classTests == null) {
+                classTests = new ClassTests();
+                classes.put(t.getClass(), classTests);
+            }
+            final Result result = getResult(t);
+            if (result == null) {
+                classTests.added.add(t);
+            } else {
+                (result.failed ? classTests.failed : classTests.passed).add(t);
+                classTests.time += result.time;
+            }
+        }
+        final List<ClassTests> failed = new ArrayList<ClassTests>();
+        final List<ClassTests> added = new ArrayList<ClassTests>();
+        final List<ClassTests> passed = new ArrayList<ClassTests>();
+        for (final ClassTests classTests : classes.values()) {
+            if (!classTests.failed.isEmpty()) {
+                failed.add(classTests);
+            } else if (!classTests.added.isEmpty()) {
+                added.add(classTests);
+            } else {
+                passed.add(classTests);
+            }
+        }
+        // the sorts are stable, so tests that took the same time keep their
+        // order
+        Collections.sort(failed, new Comparator<ClassTests>() {
+            @Override
+            public int compare(final ClassTests lhs, final ClassTests rhs) {
+                return compareTimes(lhs.time, rhs.time);
+            }
+        });
+        Collections.sort(passed, new Comparator<ClassTests>() {
+            @Override
+            public int compare(final ClassTests lhs, final ClassTests rhs) {
+                return compareTimes(rhs.time, lhs.time);
+            }
+        });
+        final TestSuite suite = new TestSuite(TestSharder.getName(test));
+        addClasses(suite, failed);
+        addClasses(suite, added);
+        addClasses(suite, passed);
+        Log.d(TAG, "Running " + failed.size() + " classes with previously failed tests first, then " + added.size()
+                + " classes with new tests, then " + passed.size() + " other classes");
+        return suite;
+    }
+
+    private void addClasses(final TestSuite suite, final List<ClassTests> classes) {
+        final Comparator<Test> fastestFirst = new Comparator<Test>() {
+            @Override
+            public int compare(final Test lhs, final Test rhs) {
+                return compareTimes(getResult(lhs).time, getResult(rhs).time);
+            }
+        };
+        for (final ClassTests classTests : classes) {
+            Collections.sort(classTests.failed, fastestFirst);
+            Collections.sort(classTests.passed, Collections.reverseOrder(fastestFirst));
+            for (final Test t : classTests.failed) {
+                suite.addTest(t);
+            }
+            for (final Test t : classTests.added) {
+                suite.addTest(t);
+            }
+            for (final Test t : classTests.passed) {
+                suite.addTest(t);
+            }
+        }
+    }
+
+    synchronized void record(final TestInfo testInfo) {
+        results.put(getKey(testInfo.testCase.getName(), testInfo.name), new Result(testInfo.error != null
+                || testInfo.failure != null, (int) Math.min(Integer.MAX_VALUE, testInfo.time)));
+    }
+
+    /**
+     * Writes the last results, including the results recorded in this run.
+     */
+    synchronized void save() {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(results.size());
+                for (final Map.Entry<String, Result> entry : results.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeBoolean(entry.getValue().failed);
+                    out.writeInt(entry.getValue().time);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            Log.d(TAG, "Written results of " + results.size() + " tests to " + file);
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing results to " + file + ": " + e, e);
+        }
+    }
+
+    private Result getResult(final Test test) {
+        if (!(test instanceof TestCase)) {
+            return null;
+        }
+        return results.get(getKey(test.getClass().getName(), ((TestCase) test).getName()));
+    }
+
+    private static int compareTimes(final long lhs, final long rhs) {
+        return lhs < rhs ? -1 : lhs == rhs ? 0 : 1;
+    }
+
+    private static String getKey(final String className, final String name) {
+        return className + "#" + name;
+    }
+}
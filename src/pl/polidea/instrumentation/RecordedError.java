@@ -0,0 +1,25 @@
+package pl.polidea.instrumentation;
+
+/**
+ * Error of a test known only from its textual description, for example read
+ * back from the result journal. Its stack trace is the description itself.
+ * 
+ */
+class RecordedError extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    RecordedError(final String description) {
+        super(description);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage();
+    }
+}
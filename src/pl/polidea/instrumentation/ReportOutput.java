@@ -0,0 +1,143 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.util.Log;
+
+/**
+ * Opens streams the report files are written to, compressing them according
+ * to one of the modes:
+ *
+ * <ul>
+ * <li>none - plain XML files</li>
+ * <li>gzip - each file is gzipped and gets {@link #GZIP_EXTENSION} appended to
+ * its name</li>
+ * <li>zip - all files are stored as entries of a single
+ * {@link #ZIP_FILE_NAME} archive. An entry is kept in memory until its file is
+ * complete, as the archive can only be written one entry at a time</li>
+ * </ul>
+ *
+ * Counts bytes of the XML written and of the files actually stored.
+ *
+ */
+class ReportOutput {
+
+    static final String COMPRESSION_NONE = "none";
+    static final String COMPRESSION_GZIP = "gzip";
+    static final String COMPRESSION_ZIP = "zip";
+
+    static final String GZIP_EXTENSION = ".gz";
+    static final String ZIP_FILE_NAME = "TEST-REPORTS.zip";
+
+    private static final String TAG = ReportOutput.class.getSimpleName();
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Output stream counting the bytes written through it. Unlike
+     * {@link FilterOutputStream} it passes arrays through in one call.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(final OutputStream out, final AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+
+    private final String compression;
+    private final File directory;
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private ZipOutputStream archive;
+
+    ReportOutput(final String compression, final File directory) {
+        this.compression = compression;
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the stream for the report file. Closing the stream completes the
+     * file.
+     *
+     * @param file
+     *            report file, as if written without compression
+     */
+    OutputStream open(final File file) throws IOException {
+        if (COMPRESSION_GZIP.equals(compression)) {
+            final OutputStream fileStream = new CountingOutputStream(new FileOutputStream(new File(file.getParentFile(),
+                    file.getName() + GZIP_EXTENSION)), compressedBytes);
+            return new CountingOutputStream(new GZIPOutputStream(fileStream, BUFFER_SIZE), uncompressedBytes);
+        } else if (COMPRESSION_ZIP.equals(compression)) {
+            return new CountingOutputStream(new ByteArrayOutputStream(BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    addEntry(file.getName(), this);
+                }
+            }, uncompressedBytes);
+        } else {
+            return new CountingOutputStream(new FileOutputStream(file), uncompressedBytes);
+        }
+    }
+
+    private synchronized void addEntry(final String name, final ByteArrayOutputStream content) throws IOException {
+        if (archive == null) {
+            archive = new ZipOutputStream(new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    new File(directory, ZIP_FILE_NAME)), BUFFER_SIZE), compressedBytes));
+        }
+        archive.putNextEntry(new ZipEntry(name));
+        content.writeTo(archive);
+        archive.closeEntry();
+    }
+
+    /**
+     * Completes the zip archive and logs the byte counts. Should be called
+     * after all report files are closed.
+     */
+    synchronized void close() {
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (final IOException e) {
+                Log.e(TAG, "Error: " + e, e);
+            }
+            archive = null;
+        }
+        if (COMPRESSION_NONE.equals(compression)) {
+            Log.d(TAG, "Report bytes written: " + uncompressedBytes.get());
+        } else {
+            Log.d(TAG, "Report bytes written: " + uncompressedBytes.get() + " uncompressed, " + compressedBytes.get()
+                    + " " + compression + " compressed");
+        }
+    }
+
+    long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    long getCompressedBytes() {
+        return COMPRESSION_NONE.equals(compression) ? uncompressedBytes.get() : compressedBytes.get();
+    }
+}
@@ -0,0 +1,306 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pl.polidea.instrumentation.PolideaInstrumentationTestRunner.TestInfo;
+import android.util.Log;
+
+/**
+ * Append-only journal of test results that survives the death of the process.
+ * A record is written when a test starts and when it finishes. Records are
+ * flushed to the file immediately, so they survive a crash of the process,
+ * and the file is synced to the storage every few tests. Each record is:
+ * 
+ * <pre>
+ * byte type (start/end), string class name, string test name
+ * for end records: byte status flags, long time in ns, strings error and failure (if flagged)
+ * </pre>
+ * 
+ * Strings are written as int length followed by UTF-8 bytes. Truncated record
+ * at the end of the file is ignored when reading and cut off when the journal
+ * is opened for appending, so that new records are not appended after it.
+ * 
+ */
+class ResultJournal {
+
+    private static final String TAG = ResultJournal.class.getSimpleName();
+
+    private static final byte RECORD_START = 1;
+    private static final byte RECORD_END = 2;
+    private static final int STATUS_ERROR = 1;
+    private static final int STATUS_FAILURE = 2;
+
+    /**
+     * Result of a test read from the journal.
+     */
+    static class Entry {
+        final String className;
+        final String name;
+        boolean finished;
+        long timeNanos;
+        String error;
+        String failure;
+
+        Entry(final String className, final String name) {
+            this.className = className;
+            this.name = name;
+        }
+
+        boolean isPassed() {
+            return finished && error == null && failure == null;
+        }
+
+        /**
+         * @return true if the test started but never finished, which means it
+         *         was running when the process died
+         */
+        boolean isCrashed() {
+            return !finished;
+        }
+    }
+
+    private final File file;
+    private final int syncInterval;
+    private FileOutputStream fileStream;
+    private DataOutputStream out;
+    private int unsynced;
+
+    ResultJournal(final File file, final int syncInterval) {
+        this.file = file;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Reads the journal.
+     * 
+     * @param file
+     *            journal file
+     * @return last entry of each test keyed by "&lt;class name&gt;#&lt;test
+     *         name&gt;", in order of the journal
+     */
+    static Map<String, Entry> read(final File file) {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        if (file.exists()) {
+            readRecords(file, entries);
+        }
+        Log.d(TAG, "Read " + entries.size() + " tests from journal " + file);
+        return entries;
+    }
+
+    /**
+     * Reads the complete records of the journal. Reading stops at the first
+     * record that cannot be read - cut short by the death of the process or
+     * garbage after it.
+     * 
+     * @param entries
+     *            map receiving the entries, null if only the length is needed
+     * @return length of the complete records at the start of the file
+     */
+    private static long readRecords(final File file, final Map<String, Entry> entries) {
+        final long fileLength = file.length();
+        long validLength = 0;
+        try {
+            final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(
+                    file)));
+            final DataInputStream in = new DataInputStream(counter);
+            try {
+                while (validLength < fileLength) {
+                    final byte type = in.readByte();
+                    final String className = readString(in, fileLength - counter.count);
+                    final String name = readString(in, fileLength - counter.count);
+                    final Entry entry = new Entry(className, name);
+                    if (type == RECORD_END) {
+                        final int status = in.readByte();
+                        entry.timeNanos = in.readLong();
+                        if ((status & STATUS_ERROR) != 0) {
+                            entry.error = readString(in, fileLength - counter.count);
+                        }
+                        if ((status & STATUS_FAILURE) != 0) {
+                            entry.failure = readString(in, fileLength - counter.count);
+                        }
+                        entry.finished = true;
+                    } else if (type != RECORD_START) {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                    validLength = counter.count;
+                    if (entries != null) {
+                        final String key = getKey(className, name);
+                        // the last record of a test wins, in order of the journal
+                        entries.remove(key);
+                        entries.put(key, entry);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final EOFException e) {
+            // end of the journal in the middle of the last record
+        } catch (final IOException e) {
+            Log.w(TAG, "Journal " + file + " is unreadable after " + validLength + " bytes: " + e);
+        }
+        return validLength;
+    }
+
+    static String getKey(final String className, final String name) {
+        return className + "#" + name;
+    }
+
+    /**
+     * Opens the journal for writing.
+     * 
+     * @param append
+     *            whether to keep the records already in the journal
+     */
+    synchronized void open(final boolean append) throws IOException {
+        if (append && file.exists()) {
+            final long validLength = readRecords(file, null);
+            if (validLength < file.length()) {
+                Log.w(TAG, "Cutting off " + (file.length() - validLength) + " bytes of incomplete record from " + file);
+                final RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+                try {
+                    truncated.setLength(validLength);
+                } finally {
+                    truncated.close();
+                }
+            }
+        }
+        fileStream = new FileOutputStream(file, append);
+        out = new DataOutputStream(new BufferedOutputStream(fileStream));
+    }
+
+    synchronized void testStarted(final String className, final String name) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_START);
+            writeString(out, className);
+            writeString(out, name);
+            out.flush();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing journal: " + e, e);
+        }
+    }
+
+    synchronized void testFinished(final TestInfo testInfo) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_END);
+            writeString(out, testInfo.testCase.getName());
+            writeString(out, testInfo.name);
+            out.writeByte((testInfo.error == null ? 0 : STATUS_ERROR) | (testInfo.failure == null ? 0 : STATUS_FAILURE));
+            out.writeLong(testInfo.timeNanos);
+            if (testInfo.error != null) {
+                writeString(out, getStackTrace(testInfo.error));
+            }
+            if (testInfo.failure != null) {
+                writeString(out, getStackTrace(testInfo.failure));
+            }
+            out.flush();
+            if (++unsynced >= syncInterval) {
+                sync();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing journal: " + e, e);
+        }
+    }
+
+    synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+            sync();
+            out.close();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error closing journal: " + e, e);
+        }
+        out = null;
+    }
+
+    private void sync() throws IOException {
+        fileStream.getFD().sync();
+        unsynced = 0;
+    }
+
+    private static String getStackTrace(final Throwable t) {
+        final StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw, true));
+        return sw.toString();
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = String.valueOf(s).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param remaining
+     *            number of bytes left in the file, which the string cannot be
+     *            longer than
+     */
+    private static String readString(final DataInputStream in, final long remaining) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > remaining - 4) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Counts bytes read, so that the end of the last complete record is known.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
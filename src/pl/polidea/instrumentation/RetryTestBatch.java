@@ -0,0 +1,126 @@
+package pl.polidea.instrumentation;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+import android.util.Log;
+
+/**
+ * Runs the tests that failed again, after all the other tests. The batch is
+ * added at the end of the tests given to the instrumentation and, when the
+ * instrumentation runs it, asks for the tests that failed so far (see
+ * {@link #takeFailedTests()}) and runs each of them again on a new instance
+ * of its class, through the result of the whole run. Tests that fail again
+ * are retried in the next round, up to the given number of rounds.
+ *
+ */
+class RetryTestBatch extends TestCase {
+
+    private static final String TAG = RetryTestBatch.class.getSimpleName();
+    private static final String NAME = "retryFailedTests";
+
+    private final int retries;
+
+    /**
+     * @param retries
+     *            maximum number of times a test is run again
+     */
+    RetryTestBatch(final int retries) {
+        super(NAME);
+        this.retries = retries;
+    }
+
+    @Override
+    public int countTestCases() {
+        // the tests are not known until the others are run
+        return 0;
+    }
+
+    @Override
+    public void run(final TestResult result) {
+        try {
+            for (int attempt = 1; attempt <= retries; attempt++) {
+                final List<TestCase> failed = takeFailedTests();
+                if (failed.isEmpty() || result.shouldStop()) {
+                    break;
+                }
+                Log.d(TAG, "Retry " + attempt + " of " + retries + ": running " + failed.size() + " failed tests");
+                for (final TestCase test : failed) {
+                    if (result.shouldStop()) {
+                        break;
+                    }
+                    final TestCase retry = newInstance(test);
+                    if (retry != null) {
+                        retryStarted(retry);
+                        retry.run(result);
+                    }
+                }
+            }
+        } finally {
+            retriesFinished();
+        }
+    }
+
+    /**
+     * Creates a new instance of the test, the same way as TestSuite does, as
+     * the instance that ran has been cleaned up.
+     */
+    private TestCase newInstance(final TestCase test) {
+        final Class< ? extends TestCase> testClass = test.getClass();
+        try {
+            TestCase retry;
+            try {
+                final Constructor< ? extends TestCase> constructor = testClass.getConstructor(String.class);
+                retry = constructor.newInstance(test.getName());
+            } catch (final NoSuchMethodException e) {
+                retry = testClass.getConstructor().newInstance();
+                retry.setName(test.getName());
+            }
+            prepareRetry(retry);
+            return retry;
+        } catch (final NoSuchMethodException e) {
+            Log.w(TAG, "Cannot retry " + test + ", its class has no public constructor: " + e);
+        } catch (final InstantiationException e) {
+            Log.w(TAG, "Cannot retry " + test + ": " + e, e);
+        } catch (final IllegalAccessException e) {
+            Log.w(TAG, "Cannot retry " + test + ": " + e, e);
+        } catch (final InvocationTargetException e) {
+            Log.w(TAG, "Cannot retry " + test + ": " + e.getCause(), e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tests that failed since it was last called, in the order
+     * they failed.
+     */
+    protected List<TestCase> takeFailedTests() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Called with the new instance of a failed test before it runs, so that
+     * it gets what the instrumentation gives to the tests it runs.
+     */
+    protected void prepareRetry(final TestCase retry) {
+        // nothing by default
+    }
+
+    /**
+     * Called right before the test is run again.
+     */
+    protected void retryStarted(final TestCase retry) {
+        // nothing by default
+    }
+
+    /**
+     * Called after the last retry, or when the run stops.
+     */
+    protected void retriesFinished() {
+        // nothing by default
+    }
+}
@@ -0,0 +1,213 @@
+package pl.polidea.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formats stack traces of errors and failures for the report. When a shared
+ * fixture breaks, thousands of tests fail with the same long trace, so the
+ * formatter can:
+ *
+ * <ul>
+ * <li>deduplicate traces - a trace is written in full once per report file,
+ * later tests failing with the same exception type and frames (the message may
+ * differ) get only the exception line and a reference to the first test</li>
+ * <li>collapse framework frames - consecutive frames of JUnit, the Android
+ * test framework, reflection and this runner are replaced by a single line</li>
+ * <li>cap the depth - only the given number of frames of each throwable in the
+ * chain is written</li>
+ * </ul>
+ *
+ * The format otherwise follows {@link Throwable#printStackTrace()}, including
+ * "Caused by:" sections with frames in common with the enclosing trace elided.
+ *
+ */
+class StackTraceFormatter {
+
+    private static final String[] FRAMEWORK_PREFIXES = { "junit.framework.", "android.test.",
+            "android.app.Instrumentation", "java.lang.reflect.", "sun.reflect.", "jdk.internal.reflect.",
+            "dalvik.system.", "com.android.internal." };
+    /**
+     * Classes of this runner that run the tests. Tests may live in the
+     * runner's package too, so its classes are matched by name rather than by
+     * package.
+     */
+    private static final String[] RUNNER_CLASSES = { PolideaInstrumentationTestRunner.class.getName(),
+            TestPhaseTimer.class.getName(), TestBenchmark.class.getName(), ParallelTestBatch.class.getName(),
+            RetryTestBatch.class.getName() };
+
+    /**
+     * Protects against cyclic cause chains.
+     */
+    private static final int MAX_CAUSES = 32;
+
+    /**
+     * Traces already written to a single report file, keyed by their
+     * fingerprint, with the test that wrote them in full.
+     */
+    static class Occurrences {
+        private final Map<Fingerprint, String> firstTests = new HashMap<Fingerprint, String>();
+    }
+
+    /**
+     * Exception types and frames of the whole cause chain. Frames are
+     * compared in full, so different traces are never merged.
+     */
+    private static class Fingerprint {
+        private final List<String> types = new ArrayList<String>();
+        private final List<StackTraceElement[]> frames = new ArrayList<StackTraceElement[]>();
+        private final int hash;
+
+        Fingerprint(final Throwable t) {
+            int h = 0;
+            for (Throwable cause = t; cause != null && types.size() < MAX_CAUSES; cause = cause.getCause()) {
+                final StackTraceElement[] elements = cause.getStackTrace();
+                types.add(cause.getClass().getName());
+                frames.add(elements);
+                h = h * 31 + cause.getClass().getName().hashCode();
+                h = h * 31 + Arrays.hashCode(elements);
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint other = (Fingerprint) o;
+            if (hash != other.hash || !types.equals(other.types) || frames.size() != other.frames.size()) {
+                return false;
+            }
+            for (int i = 0; i < frames.size(); i++) {
+                if (!Arrays.equals(frames.get(i), other.frames.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final boolean dedup;
+    private final boolean collapseFramework;
+    private final int maxDepth;
+
+    /**
+     * @param dedup
+     *            whether repeated traces are replaced by a reference
+     * @param collapseFramework
+     *            whether framework frames are collapsed
+     * @param maxDepth
+     *            maximum number of frames written for each throwable, 0 for
+     *            no limit
+     */
+    StackTraceFormatter(final boolean dedup, final boolean collapseFramework, final int maxDepth) {
+        this.dedup = dedup;
+        this.collapseFramework = collapseFramework;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Formats the trace.
+     *
+     * @param t
+     *            error or failure of the test
+     * @param testId
+     *            name of the test, referenced by later occurrences
+     * @param occurrences
+     *            traces already written to the report file
+     */
+    String format(final Throwable t, final String testId, final Occurrences occurrences) {
+        final StringBuilder sb = new StringBuilder();
+        // errors without frames, like timeouts with thread dumps, are all
+        // described by their message, so there is nothing to deduplicate
+        if (dedup && t.getStackTrace().length > 0) {
+            final Fingerprint fingerprint = new Fingerprint(t);
+            final String firstTest;
+            synchronized (occurrences) {
+                firstTest = occurrences.firstTests.get(fingerprint);
+                if (firstTest == null) {
+                    occurrences.firstTests.put(fingerprint, testId);
+                }
+            }
+            if (firstTest != null) {
+                sb.append(t).append('\n');
+                sb.append("\t(same stack trace as ").append(firstTest).append(")\n");
+                return sb.toString();
+            }
+        }
+        appendTrace(sb, t, null, "", 0);
+        return sb.toString();
+    }
+
+    private void appendTrace(final StringBuilder sb, final Throwable t, final StackTraceElement[] enclosing,
+            final String caption, final int causeDepth) {
+        sb.append(caption).append(t).append('\n');
+        final StackTraceElement[] frames = t.getStackTrace();
+        int last = frames.length - 1;
+        if (enclosing != null) {
+            int e = enclosing.length - 1;
+            while (last >= 0 && e >= 0 && frames[last].equals(enclosing[e])) {
+                last--;
+                e--;
+            }
+        }
+        int written = 0;
+        int collapsed = 0;
+        for (int i = 0; i <= last; i++) {
+            if (maxDepth > 0 && written >= maxDepth) {
+                appendCollapsed(sb, collapsed);
+                collapsed = 0;
+                sb.append("\t... ").append(last + 1 - i).append(" more frames\n");
+                break;
+            }
+            if (collapseFramework && isFramework(frames[i])) {
+                collapsed++;
+                continue;
+            }
+            appendCollapsed(sb, collapsed);
+            collapsed = 0;
+            sb.append("\tat ").append(frames[i]).append('\n');
+            written++;
+        }
+        appendCollapsed(sb, collapsed);
+        if (last < frames.length - 1) {
+            sb.append("\t... ").append(frames.length - 1 - last).append(" more\n");
+        }
+        final Throwable cause = t.getCause();
+        if (cause != null && cause != t && causeDepth < MAX_CAUSES) {
+            appendTrace(sb, cause, frames, "Caused by: ", causeDepth + 1);
+        }
+    }
+
+    private static void appendCollapsed(final StringBuilder sb, final int collapsed) {
+        if (collapsed > 0) {
+            sb.append("\t... ").append(collapsed).append(collapsed == 1 ? " framework frame\n" : " framework frames\n");
+        }
+    }
+
+    private static boolean isFramework(final StackTraceElement frame) {
+        final String className = frame.getClassName();
+        for (final String prefix : FRAMEWORK_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (final String runnerClass : RUNNER_CLASSES) {
+            // including its inner and anonymous classes
+            if (className.startsWith(runnerClass)
+                    && (className.length() == runnerClass.length() || className.charAt(runnerClass.length()) == '$')) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package pl.polidea.instrumentation;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Runs tests marked with {@link Benchmark} repeatedly and computes statistics
+ * of the time of their measured iterations. Each iteration is a full run of
+ * the test through {@link TestPhaseTimer}, of which only the test method is
+ * timed (or the whole run, for test cases that override runBare()). Garbage
+ * is collected before the measured iterations and after each batch of them,
+ * so that garbage of earlier iterations is not collected while a later one is
+ * timed.
+ *
+ */
+class TestBenchmark {
+
+    private static final String TAG = TestBenchmark.class.getSimpleName();
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * Statistics of the measured iterations, in ns.
+     */
+    static class Result {
+        int warmup;
+        int iterations;
+        long minNanos;
+        long medianNanos;
+        long p90Nanos;
+        long p99Nanos;
+        double opsPerSecond;
+    }
+
+    private final int defaultWarmup;
+    private final int defaultIterations;
+    private final int batchSize;
+    private final TestPhaseTimer phaseTimer = new TestPhaseTimer();
+    private final Map<Class< ? >, Map<String, Benchmark>> benchmarks = new WeakHashMap<Class< ? >, Map<String, Benchmark>>();
+
+    /**
+     * @param batchSize
+     *            number of measured iterations between garbage collections
+     */
+    TestBenchmark(final int defaultWarmup, final int defaultIterations, final int batchSize) {
+        this.defaultWarmup = defaultWarmup;
+        this.defaultIterations = defaultIterations;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the annotation of the test method, null if it is not a
+     *         benchmark
+     */
+    Benchmark getBenchmark(final TestCase test) {
+        final String name = test.getName();
+        if (name == null) {
+            return null;
+        }
+        synchronized (benchmarks) {
+            Map<String, Benchmark> classBenchmarks = benchmarks.get(test.getClass());
+            if (classBenchmarks == null) {
+                classBenchmarks = new HashMap<String, Benchmark>();
+                for (final Method method : test.getClass().getMethods()) {
+                    final Benchmark benchmark = method.getAnnotation(Benchmark.class);
+                    if (benchmark != null && method.getParameterTypes().length == 0) {
+                        classBenchmarks.put(method.getName(), benchmark);
+                    }
+                }
+                benchmarks.put(test.getClass(), classBenchmarks);
+            }
+            return classBenchmarks.get(name);
+        }
+    }
+
+    /**
+     * Runs the warmup and measured iterations of the test. An iteration that
+     * throws ends the benchmark.
+     *
+     * @return statistics of the measured iterations
+     * @throws Throwable
+     *             whatever the test threw
+     */
+    Result run(final TestCase test, final Benchmark benchmark) throws Throwable {
+        final Result result = new Result();
+        result.warmup = benchmark.warmup() >= 0 ? benchmark.warmup() : defaultWarmup;
+        result.iterations = Math.max(1, benchmark.iterations() >= 0 ? benchmark.iterations() : defaultIterations);
+        final long[] phaseNanos = new long[TestPhaseTimer.PHASES];
+        for (int i = 0; i < result.warmup; i++) {
+            runIteration(test, phaseNanos);
+        }
+        final long[] samples = new long[result.iterations];
+        long totalNanos = 0;
+        for (int i = 0; i < samples.length; i++) {
+            if (i % batchSize == 0) {
+                collectGarbage();
+            }
+            samples[i] = runIteration(test, phaseNanos);
+            totalNanos += samples[i];
+        }
+        Arrays.sort(samples);
+        result.minNanos = samples[0];
+        result.medianNanos = percentile(samples, 50);
+        result.p90Nanos = percentile(samples, 90);
+        result.p99Nanos = percentile(samples, 99);
+        result.opsPerSecond = totalNanos == 0 ? 0 : samples.length * NANOS_PER_SECOND / totalNanos;
+        Log.d(TAG, test + ": " + result.iterations + " iterations after " + result.warmup + " warmup, median "
+                + result.medianNanos + " ns, p99 " + result.p99Nanos + " ns");
+        return result;
+    }
+
+    private long runIteration(final TestCase test, final long[] phaseNanos) throws Throwable {
+        final long start = System.nanoTime();
+        final boolean measured = phaseTimer.runBare(test, phaseNanos);
+        return measured ? phaseNanos[TestPhaseTimer.BODY] : System.nanoTime() - start;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted samples.
+     */
+    static long percentile(final long[] sorted, final int percent) {
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void collectGarbage() {
+        System.gc();
+        System.runFinalization();
+        System.gc();
+    }
+}
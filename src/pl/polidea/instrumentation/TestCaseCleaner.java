@@ -0,0 +1,92 @@
+package pl.polidea.instrumentation;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Nulls all non-static reference fields of finished test cases. The fields to
+ * clear are found with reflection only once per test case class and are kept
+ * in a cache that does not prevent the classes from being unloaded - the class
+ * is a weak key and the field list is softly referenced, since fields refer
+ * back to their declaring class.
+ * 
+ */
+class TestCaseCleaner {
+
+    private static final Field[] NO_FIELDS = new Field[0];
+
+    private final Map<Class< ? >, SoftReference<Field[]>> plans = new WeakHashMap<Class< ? >, SoftReference<Field[]>>();
+    private long totalTimeNanos;
+
+    /**
+     * Nulls all non-static reference fields in the given test class. This
+     * method helps us with those test classes that don't have an explicit
+     * tearDown() method. Normally the garbage collector should take care of
+     * everything, but since JUnit keeps references to all test cases, a little
+     * help might be a good idea.
+     * 
+     * Note! This is copied from InstrumentationCoreTestRunner in android code
+     * 
+     * @param test
+     *            test case to clean up
+     * @return time spent in cleanup in ns
+     */
+    long cleanup(final TestCase test) {
+        final long start = System.nanoTime();
+        final Field[] fields = getPlan(test.getClass());
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                fields[i].set(test, null);
+            } catch (final Exception ignored) {
+                // Nothing we can do about it.
+            }
+        }
+        final long time = System.nanoTime() - start;
+        synchronized (this) {
+            totalTimeNanos += time;
+        }
+        return time;
+    }
+
+    synchronized long getTotalTimeNanos() {
+        return totalTimeNanos;
+    }
+
+    private Field[] getPlan(final Class< ? > clazz) {
+        synchronized (plans) {
+            final SoftReference<Field[]> ref = plans.get(clazz);
+            Field[] plan = ref == null ? null : ref.get();
+            if (plan == null) {
+                plan = createPlan(clazz);
+                plans.put(clazz, new SoftReference<Field[]>(plan));
+            }
+            return plan;
+        }
+    }
+
+    private static Field[] createPlan(final Class< ? > testClass) {
+        final List<Field> plan = new ArrayList<Field>();
+        Class< ? > clazz = testClass;
+        while (clazz != TestCase.class) {
+            for (final Field f : clazz.getDeclaredFields()) {
+                if (!f.getType().isPrimitive() && !Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        f.setAccessible(true);
+                        plan.add(f);
+                    } catch (final SecurityException ignored) {
+                        // Nothing we can do about it.
+                    }
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return plan.isEmpty() ? NO_FIELDS : plan.toArray(new Field[plan.size()]);
+    }
+}
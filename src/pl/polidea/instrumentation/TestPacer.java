@@ -0,0 +1,121 @@
+package pl.polidea.instrumentation;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decides how long the runner waits after each test. Older Binder
+ * implementations could not handle too many operations in a very short time,
+ * so the original runner made every test take at least {@link #MINIMUM_TIME}.
+ * On current devices that only slows the run down, so the waiting is done
+ * according to one of the policies:
+ * 
+ * <ul>
+ * <li>off - never wait</li>
+ * <li>fixed - always make tests take at least {@link #MINIMUM_TIME} (the
+ * original behaviour)</li>
+ * <li>adaptive - wait as in "fixed", but only on old API levels or when the
+ * time between consecutive tests suddenly grows, which is what happens when
+ * Binder calls sending test status start to queue up</li>
+ * </ul>
+ * 
+ */
+class TestPacer {
+
+    static final String PACING_OFF = "off";
+    static final String PACING_FIXED = "fixed";
+    static final String PACING_ADAPTIVE = "adaptive";
+
+    private static final String TAG = TestPacer.class.getSimpleName();
+
+    /**
+     * The minimum time we expect a test to take.
+     */
+    static final int MINIMUM_TIME = 100;
+    /**
+     * The last API level for which the adaptive policy always waits.
+     */
+    private static final int OLD_BINDER_MAX_SDK = 4;
+    /**
+     * How many times the gap between tests must exceed its average to be
+     * treated as back-pressure.
+     */
+    private static final int BACK_PRESSURE_FACTOR = 4;
+    /**
+     * Gaps shorter than that (in ms) are never treated as back-pressure.
+     */
+    private static final int BACK_PRESSURE_MIN_GAP = 10;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final String policy;
+    private final boolean oldBinder;
+    private long lastEndNanos = -1;
+    private long averageGapNanos = -1;
+    private boolean backPressure;
+
+    TestPacer(final String policy) {
+        this.policy = policy;
+        this.oldBinder = Build.VERSION.SDK_INT <= OLD_BINDER_MAX_SDK;
+    }
+
+    /**
+     * Should be called when a test starts. Measures the gap since the
+     * previous test finished and checks whether it signals back-pressure.
+     * 
+     * @param nowNanos
+     *            current {@link System#nanoTime()}
+     */
+    synchronized void testStarted(final long nowNanos) {
+        if (lastEndNanos < 0) {
+            return;
+        }
+        final long gap = nowNanos - lastEndNanos;
+        backPressure = averageGapNanos >= 0 && gap > BACK_PRESSURE_MIN_GAP * NANOS_PER_MILLI
+                && gap > averageGapNanos * BACK_PRESSURE_FACTOR;
+        if (backPressure) {
+            Log.d(TAG, "Back-pressure detected: gap " + gap / NANOS_PER_MILLI + " ms, average " + averageGapNanos
+                    / NANOS_PER_MILLI + " ms");
+        }
+        averageGapNanos = averageGapNanos < 0 ? gap : (averageGapNanos * 7 + gap) / 8;
+    }
+
+    /**
+     * Waits, if the policy requires it, after the test finished.
+     * 
+     * @param timeTakenNanos
+     *            time the test took in ns
+     * @return time spent waiting in ns
+     */
+    long pace(final long timeTakenNanos) {
+        final long timeTaken = timeTakenNanos / NANOS_PER_MILLI;
+        long paced = 0;
+        if (shouldWait() && timeTaken < MINIMUM_TIME) {
+            final long start = System.nanoTime();
+            try {
+                Thread.sleep(MINIMUM_TIME - timeTaken);
+            } catch (final InterruptedException e) {
+                // whoever interrupted the test thread still has to see it
+                Thread.currentThread().interrupt();
+            }
+            paced = System.nanoTime() - start;
+        }
+        synchronized (this) {
+            lastEndNanos = System.nanoTime();
+        }
+        return paced;
+    }
+
+    private synchronized boolean shouldWait() {
+        if (PACING_OFF.equals(policy)) {
+            return false;
+        } else if (PACING_FIXED.equals(policy)) {
+            return true;
+        } else {
+            return oldBinder || backPressure;
+        }
+    }
+
+    boolean isEnabled() {
+        return !PACING_OFF.equals(policy);
+    }
+}
@@ -0,0 +1,124 @@
+package pl.polidea.instrumentation;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Runs a test the same way {@link TestCase#runBare()} does, measuring
+ * separately how long setUp(), the test itself and tearDown() take. Test
+ * cases that override runBare() are run by it, as their phases cannot be told
+ * apart.
+ * 
+ */
+class TestPhaseTimer {
+
+    static final int SET_UP = 0;
+    static final int BODY = 1;
+    static final int TEAR_DOWN = 2;
+    static final int PHASES = 3;
+
+    private static final String TAG = TestPhaseTimer.class.getSimpleName();
+
+    private final Method setUp;
+    private final Method runTest;
+    private final Method tearDown;
+    private final Map<Class< ? >, Boolean> timeable = new WeakHashMap<Class< ? >, Boolean>();
+
+    TestPhaseTimer() {
+        Method s = null;
+        Method r = null;
+        Method t = null;
+        try {
+            s = TestCase.class.getDeclaredMethod("setUp");
+            r = TestCase.class.getDeclaredMethod("runTest");
+            t = TestCase.class.getDeclaredMethod("tearDown");
+            s.setAccessible(true);
+            r.setAccessible(true);
+            t.setAccessible(true);
+        } catch (final Exception e) {
+            Log.w(TAG, "Test phases cannot be measured: " + e);
+            s = null;
+        }
+        setUp = s;
+        runTest = r;
+        tearDown = t;
+    }
+
+    /**
+     * Runs the test.
+     * 
+     * @param test
+     *            test to run
+     * @param phaseNanos
+     *            array receiving time of each phase in ns
+     * @return true if the phases were measured
+     * @throws Throwable
+     *             whatever the test threw
+     */
+    boolean runBare(final TestCase test, final long[] phaseNanos) throws Throwable {
+        if (!isTimeable(test.getClass())) {
+            test.runBare();
+            return false;
+        }
+        Throwable exception = null;
+        long start = System.nanoTime();
+        try {
+            invoke(setUp, test);
+        } finally {
+            phaseNanos[SET_UP] = System.nanoTime() - start;
+        }
+        start = System.nanoTime();
+        try {
+            invoke(runTest, test);
+        } catch (final Throwable running) {
+            exception = running;
+        } finally {
+            final long end = System.nanoTime();
+            phaseNanos[BODY] = end - start;
+            start = end;
+            try {
+                invoke(tearDown, test);
+            } catch (final Throwable tearingDown) {
+                if (exception == null) {
+                    exception = tearingDown;
+                }
+            }
+            phaseNanos[TEAR_DOWN] = System.nanoTime() - start;
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return true;
+    }
+
+    private boolean isTimeable(final Class< ? > clazz) {
+        if (setUp == null) {
+            return false;
+        }
+        synchronized (timeable) {
+            Boolean result = timeable.get(clazz);
+            if (result == null) {
+                try {
+                    result = clazz.getMethod("runBare").getDeclaringClass() == TestCase.class;
+                } catch (final NoSuchMethodException e) {
+                    result = false;
+                }
+                timeable.put(clazz, result);
+            }
+            return result;
+        }
+    }
+
+    private static void invoke(final Method method, final TestCase test) throws Throwable {
+        try {
+            method.invoke(test);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package pl.polidea.instrumentation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import android.util.Log;
+
+/**
+ * Selects the tests belonging to one shard when the same tests are run on
+ * several devices. Whole test case classes are assigned to shards, so that
+ * each class is run on exactly one device. The assignment depends only on the
+ * tests, the number of shards and the timings file, so every device computes
+ * the same one.
+ * 
+ * Without timings classes are assigned by stable hash of their name. With
+ * timings - a text file containing "&lt;class name&gt; &lt;duration in
+ * ms&gt;" lines - classes are assigned longest first to the shard with the
+ * least expected duration so far, so that all shards take about the same
+ * time. Classes missing from the file are expected to take the average time.
+ * 
+ */
+class TestSharder {
+
+    private static final String TAG = TestSharder.class.getSimpleName();
+
+    private final int shardIndex;
+    private final int numShards;
+    private final File timingsFile;
+
+    TestSharder(final int shardIndex, final int numShards, final File timingsFile) {
+        this.shardIndex = shardIndex;
+        this.numShards = numShards;
+        this.timingsFile = timingsFile;
+    }
+
+    /**
+     * @param test
+     *            all tests to run
+     * @return suite containing the tests of this shard, in original order
+     */
+    Test shard(final Test test) {
+        final List<Test> tests = new ArrayList<Test>();
+        collectTests(test, tests);
+        final Map<String, List<Test>> classes = new LinkedHashMap<String, List<Test>>();
+        for (final Test t : tests) {
+            final String className = t.getClass().getName();
+            List<Test> classTests = classes.get(className);
+            if (classTests == null) {
+                classTests = new ArrayList<Test>();
+                classes.put(className, classTests);
+            }
+            classTests.add(t);
+        }
+        final Map<String, Integer> assignment = timingsFile == null ? assignByHash(classes.keySet())
+                : assignByDuration(classes.keySet(), readTimings(timingsFile));
+        final TestSuite suite = new TestSuite(getName(test));
+        int count = 0;
+        for (final Map.Entry<String, List<Test>> entry : classes.entrySet()) {
+            if (assignment.get(entry.getKey()) == shardIndex) {
+                for (final Test t : entry.getValue()) {
+                    suite.addTest(t);
+                    count++;
+                }
+            }
+        }
+        Log.d(TAG, "Shard " + shardIndex + "/" + numShards + " runs " + count + " of " + tests.size() + " tests");
+        return suite;
+    }
+
+    /**
+     * Flattens the test hierarchy into the list of tests that are not suites.
+     */
+    static void collectTests(final Test test, final List<Test> tests) {
+        if (test instanceof TestSuite) {
+            final Enumeration< ? > e = ((TestSuite) test).tests();
+            while (e.hasMoreElements()) {
+                collectTests((Test) e.nextElement(), tests);
+            }
+        } else {
+            tests.add(test);
+        }
+    }
+
+    static String getName(final Test test) {
+        return test instanceof TestSuite ? ((TestSuite) test).getName() : test.getClass().getName();
+    }
+
+    private Map<String, Integer> assignByHash(final Iterable<String> classNames) {
+        final Map<String, Integer> assignment = new HashMap<String, Integer>();
+        for (final String className : classNames) {
+            // String.hashCode is specified, so it is the same on every device
+            assignment.put(className, (className.hashCode() & Integer.MAX_VALUE) % numShards);
+        }
+        return assignment;
+    }
+
+    private Map<String, Integer> assignByDuration(final Iterable<String> classNames, final Map<String, Long> timings) {
+        long known = 0;
+        for (final Long duration : timings.values()) {
+            known += duration;
+        }
+        final long average = timings.isEmpty() ? 1 : Math.max(1, known / timings.size());
+        final List<String> sorted = new ArrayList<String>();
+        final Map<String, Long> durations = new HashMap<String, Long>();
+        for (final String className : classNames) {
+            final Long duration = timings.get(className);
+            durations.put(className, duration == null ? average : duration);
+            sorted.add(className);
+        }
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(final String lhs, final String rhs) {
+                final int result = durations.get(rhs).compareTo(durations.get(lhs));
+                return result != 0 ? result : lhs.compareTo(rhs);
+            }
+        });
+        final long[] shardDurations = new long[numShards];
+        final Map<String, Integer> assignment = new HashMap<String, Integer>();
+        for (final String className : sorted) {
+            int shortest = 0;
+            for (int i = 1; i < numShards; i++) {
+                if (shardDurations[i] < shardDurations[shortest]) {
+                    shortest = i;
+                }
+            }
+            shardDurations[shortest] += durations.get(className);
+            assignment.put(className, shortest);
+        }
+        Log.d(TAG, "Expected duration of shard " + shardIndex + ": " + shardDurations[shardIndex] + " ms");
+        return assignment;
+    }
+
+    private static Map<String, Long> readTimings(final File file) {
+        final Map<String, Long> timings = new HashMap<String, Long>();
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.trim().split("\\s+");
+                    if (fields.length == 2) {
+                        try {
+                            timings.put(fields[0], Long.parseLong(fields[1]));
+                        } catch (final NumberFormatException e) {
+                            Log.w(TAG, "Invalid timing: " + line);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error reading timings from " + file + ": " + e, e);
+        }
+        Log.d(TAG, "Read timings of " + timings.size() + " classes from " + file);
+        return timings;
+    }
+}
@@ -0,0 +1,212 @@
+package pl.polidea.instrumentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Watches the tests running on each thread for exceeding their time budget.
+ * A single thread watches all of them, sleeping until the nearest deadline, so
+ * starting and finishing a test only updates its {@link Watch}.
+ *
+ * When a test exceeds its budget, {@link #testTimedOut(Object, String)} is
+ * called with a dump of all threads and the test is interrupted, which
+ * unblocks most waiting tests, so that the run can continue. A test that still
+ * does not finish within {@link #STUCK_GRACE_NANOS} is reported with
+ * {@link #testStuck(Object)}.
+ *
+ */
+class TestWatchdog implements Runnable {
+
+    private static final String TAG = TestWatchdog.class.getSimpleName();
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /**
+     * How long an interrupted test may take to finish.
+     */
+    static final long STUCK_GRACE_NANOS = 10000L * NANOS_PER_MILLI;
+
+    /**
+     * Test running on a single thread.
+     */
+    static class Watch {
+        private final Thread thread;
+        private final Object owner;
+        private String test;
+        private long deadlineNanos;
+        private String budget;
+        private boolean running;
+        private boolean timedOut;
+
+        private Watch(final Thread thread, final Object owner) {
+            this.thread = thread;
+            this.owner = owner;
+        }
+    }
+
+    private final List<Watch> watches = new ArrayList<Watch>();
+    private Thread watchdogThread;
+    private long nextWakeNanos = Long.MAX_VALUE;
+    private boolean closed;
+
+    synchronized void start() {
+        watchdogThread = new Thread(this, TAG);
+        watchdogThread.setDaemon(true);
+        watchdogThread.start();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Creates the watch of tests running on the current thread.
+     *
+     * @param owner
+     *            object passed to the callbacks
+     */
+    synchronized Watch newWatch(final Object owner) {
+        final Watch watch = new Watch(Thread.currentThread(), owner);
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * @param test
+     *            name of the test, used in the description
+     * @param budgetNanos
+     *            time the test may take
+     * @param budget
+     *            description of the budget, like "test budget of 1000 ms"
+     */
+    synchronized void testStarted(final Watch watch, final String test, final long budgetNanos, final String budget) {
+        watch.test = test;
+        watch.deadlineNanos = System.nanoTime() + Math.max(0, budgetNanos);
+        watch.budget = budget;
+        watch.running = true;
+        watch.timedOut = false;
+        if (watch.deadlineNanos < nextWakeNanos) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops watching the test. Once it returns, the test is no longer timed
+     * out.
+     */
+    synchronized void testFinished(final Watch watch) {
+        watch.running = false;
+    }
+
+    @Override
+    public void run() {
+        final List<Object> stuck = new ArrayList<Object>();
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                checkDeadlines(stuck);
+                if (stuck.isEmpty()) {
+                    try {
+                        if (nextWakeNanos == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            final long waitNanos = nextWakeNanos - System.nanoTime();
+                            if (waitNanos > 0) {
+                                wait(Math.max(1, waitNanos / NANOS_PER_MILLI));
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            // outside of the lock, as giving up the test may take a while
+            for (final Object owner : stuck) {
+                testStuck(owner);
+            }
+            stuck.clear();
+        }
+    }
+
+    private void checkDeadlines(final List<Object> stuck) {
+        final long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (final Watch watch : watches) {
+            if (!watch.running) {
+                continue;
+            }
+            if (now - watch.deadlineNanos >= 0) {
+                if (watch.timedOut) {
+                    Log.e(TAG, watch.test + " did not finish after it was interrupted");
+                    watch.running = false;
+                    stuck.add(watch.owner);
+                    continue;
+                }
+                Log.w(TAG, watch.test + " timed out, interrupting it");
+                watch.timedOut = true;
+                testTimedOut(watch.owner, watch.test + " timed out after exceeding its " + watch.budget
+                        + ". Threads:\n" + dumpThreads(watch.thread));
+                watch.thread.interrupt();
+                watch.deadlineNanos = now + STUCK_GRACE_NANOS;
+            }
+            next = Math.min(next, watch.deadlineNanos);
+        }
+        nextWakeNanos = next;
+    }
+
+    /**
+     * Called on the watchdog thread when a test exceeds its budget, before
+     * the test is interrupted.
+     *
+     * @param owner
+     *            owner of the watch
+     * @param description
+     *            description of the timeout, including the thread dump
+     */
+    protected void testTimedOut(final Object owner, final String description) {
+        // nothing by default
+    }
+
+    /**
+     * Called on the watchdog thread when an interrupted test did not finish.
+     *
+     * @param owner
+     *            owner of the watch
+     */
+    protected void testStuck(final Object owner) {
+        // nothing by default
+    }
+
+    /**
+     * Dumps the stacks of all threads, the thread of the test first.
+     */
+    static String dumpThreads(final Thread testThread) {
+        final StringBuilder sb = new StringBuilder();
+        final Map<Thread, StackTraceElement[]> traces = Thread.getAllStackTraces();
+        appendThread(sb, testThread, testThread.getStackTrace(), " (test thread)");
+        for (final Map.Entry<Thread, StackTraceElement[]> entry : traces.entrySet()) {
+            if (entry.getKey() != testThread && entry.getKey() != Thread.currentThread()) {
+                appendThread(sb, entry.getKey(), entry.getValue(), "");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendThread(final StringBuilder sb, final Thread thread, final StackTraceElement[] trace,
+            final String note) {
+        sb.append('"').append(thread.getName()).append('"').append(note);
+        if (thread.isDaemon()) {
+            sb.append(" daemon");
+        }
+        sb.append(' ').append(thread.getState()).append('\n');
+        for (final StackTraceElement frame : trace) {
+            sb.append("\tat ").append(frame).append('\n');
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,386 @@
+package pl.polidea.instrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Buffered UTF-8 XML writer for the reports, used instead of
+ * {@link android.util.Xml#newSerializer()}. It supports only what the reports
+ * need, which makes it considerably cheaper:
+ *
+ * <ul>
+ * <li>bytes are encoded directly into its own buffer, without a Writer</li>
+ * <li>tag and attribute names are encoded once per writer; names are
+ * constants, so they are looked up by identity</li>
+ * <li>strings that are plain ASCII and need no escaping are copied without
+ * escaping them character by character</li>
+ * </ul>
+ *
+ * Escaping follows the KXmlSerializer used by the platform: &amp;, &lt;, &gt;
+ * (and &quot; in attributes) are escaped, as are tab, new line and carriage
+ * return in attributes. Characters that XML 1.0 does not allow at all (other
+ * control characters, unpaired surrogates, U+FFFE and U+FFFF) cannot be
+ * escaped either, so they are replaced with '?' - the platform serializer
+ * refuses them, and parsers like the one of Jenkins reject the whole file. In
+ * pretty mode elements are indented the same way as with the "indent-output"
+ * feature.
+ *
+ */
+class XmlReportWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] DECLARATION = ascii("<?xml version='1.0' encoding='UTF-8' ?>");
+    private static final byte[] NEW_LINE = ascii("\r\n");
+    private static final byte[] INDENT = ascii("  ");
+
+    private final OutputStream out;
+    private final boolean pretty;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Map<String, byte[]> names = new IdentityHashMap<String, byte[]>();
+    private final String[] openTags = new String[MAX_DEPTH];
+    /**
+     * Whether the element at the given depth has child elements, so that its
+     * end tag goes on a new line in pretty mode.
+     */
+    private final boolean[] indentEnd = new boolean[MAX_DEPTH];
+    private int position;
+    private int depth;
+    private boolean pendingStartTag;
+
+    XmlReportWriter(final OutputStream out, final boolean pretty) {
+        this.out = out;
+        this.pretty = pretty;
+    }
+
+    void startDocument() throws IOException {
+        write(DECLARATION);
+    }
+
+    XmlReportWriter startTag(final String name) throws IOException {
+        closePendingStartTag();
+        if (pretty) {
+            if (depth > 0) {
+                indentEnd[depth - 1] = true;
+            }
+            newLine(depth);
+        }
+        writeByte('<');
+        writeName(name);
+        openTags[depth] = name;
+        indentEnd[depth] = false;
+        depth++;
+        pendingStartTag = true;
+        return this;
+    }
+
+    XmlReportWriter attribute(final String name, final String value) throws IOException {
+        if (!pendingStartTag) {
+            throw new IllegalStateException("Attribute " + name + " outside of a start tag");
+        }
+        writeByte(' ');
+        writeName(name);
+        writeByte('=');
+        writeByte('"');
+        writeEscaped(value, true);
+        writeByte('"');
+        return this;
+    }
+
+    XmlReportWriter text(final String text) throws IOException {
+        closePendingStartTag();
+        writeEscaped(text, false);
+        return this;
+    }
+
+    /**
+     * Writes a chunk of text. A surrogate pair must not be split between
+     * chunks, its halves would be written as unpaired.
+     */
+    XmlReportWriter text(final char[] chars, final int start, final int length) throws IOException {
+        closePendingStartTag();
+        for (int i = start; i < start + length; i++) {
+            writeEscapedChar(chars, i, start, start + length, false);
+        }
+        return this;
+    }
+
+    /**
+     * Copies all the text of the reader in chunks, keeping surrogate pairs
+     * split by a read together.
+     */
+    XmlReportWriter text(final Reader reader) throws IOException {
+        final char[] chunk = new char[CHUNK_SIZE];
+        int kept = 0;
+        int n;
+        while ((n = reader.read(chunk, kept, chunk.length - kept)) > 0) {
+            final int end = kept + n;
+            // a high surrogate at the end waits for its pair in the next chunk
+            kept = Character.isHighSurrogate(chunk[end - 1]) ? 1 : 0;
+            text(chunk, 0, end - kept);
+            if (kept > 0) {
+                chunk[0] = chunk[end - 1];
+            }
+        }
+        if (kept > 0) {
+            text(chunk, 0, kept);
+        }
+        return this;
+    }
+
+    XmlReportWriter endTag(final String name) throws IOException {
+        depth--;
+        if (openTags[depth] != name && !openTags[depth].equals(name)) {
+            throw new IllegalStateException("End tag " + name + " does not match " + openTags[depth]);
+        }
+        if (pendingStartTag) {
+            writeByte(' ');
+            writeByte('/');
+            writeByte('>');
+            pendingStartTag = false;
+        } else {
+            if (pretty && indentEnd[depth]) {
+                newLine(depth);
+            }
+            writeByte('<');
+            writeByte('/');
+            writeName(name);
+            writeByte('>');
+        }
+        return this;
+    }
+
+    /**
+     * Writes an already escaped fragment, closing the pending start tag first.
+     */
+    void raw(final String fragment) throws IOException {
+        closePendingStartTag();
+        writeUtf8(fragment);
+    }
+
+    /**
+     * Writes already encoded fragment, closing the pending start tag first.
+     */
+    void raw(final ByteArrayOutputStream fragment) throws IOException {
+        closePendingStartTag();
+        flushBuffer();
+        fragment.writeTo(out);
+    }
+
+    /**
+     * Closes all elements that are still open and flushes the output.
+     */
+    void endDocument() throws IOException {
+        while (depth > 0) {
+            endTag(openTags[depth - 1]);
+        }
+        flush();
+    }
+
+    void flush() throws IOException {
+        closePendingStartTag();
+        flushBuffer();
+        out.flush();
+    }
+
+    void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+
+    private void closePendingStartTag() throws IOException {
+        if (pendingStartTag) {
+            writeByte('>');
+            pendingStartTag = false;
+        }
+    }
+
+    private void newLine(final int indent) throws IOException {
+        write(NEW_LINE);
+        for (int i = 0; i < indent; i++) {
+            write(INDENT);
+        }
+    }
+
+    private void writeName(final String name) throws IOException {
+        byte[] encoded = names.get(name);
+        if (encoded == null) {
+            encoded = name.getBytes("UTF-8");
+            names.put(name, encoded);
+        }
+        write(encoded);
+    }
+
+    private void writeEscaped(final String s, final boolean attribute) throws IOException {
+        final int length = s.length();
+        if (position + length <= buffer.length && isPlain(s, attribute)) {
+            for (int i = 0; i < length; i++) {
+                buffer[position++] = (byte) s.charAt(i);
+            }
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (isPlainChar(c, attribute)) {
+                writeByte(c);
+            } else {
+                writeSpecial(c, attribute, i + 1 < length ? s.charAt(i + 1) : 0);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    private void writeEscapedChar(final char[] chars, final int i, final int start, final int end,
+            final boolean attribute) throws IOException {
+        final char c = chars[i];
+        if (isPlainChar(c, attribute)) {
+            writeByte(c);
+        } else if (Character.isLowSurrogate(c) && i > start && Character.isHighSurrogate(chars[i - 1])) {
+            // written together with the preceding high surrogate
+            return;
+        } else {
+            writeSpecial(c, attribute, i + 1 < end ? chars[i + 1] : 0);
+        }
+    }
+
+    private static boolean isPlain(final String s, final boolean attribute) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!isPlainChar(s.charAt(i), attribute)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPlainChar(final char c, final boolean attribute) {
+        if (c >= 0x80) {
+            return false;
+        }
+        if (c < ' ') {
+            return !attribute && (c == '\n' || c == '\r' || c == '\t');
+        }
+        return c != '&' && c != '<' && c != '>' && (!attribute || c != '"');
+    }
+
+    /**
+     * Writes a character that needs escaping or more than one byte of UTF-8.
+     */
+    private void writeSpecial(final char c, final boolean attribute, final char next) throws IOException {
+        switch (c) {
+        case '&':
+            writeAscii("&amp;");
+            break;
+        case '<':
+            writeAscii("&lt;");
+            break;
+        case '>':
+            writeAscii("&gt;");
+            break;
+        case '"':
+            writeAscii("&quot;");
+            break;
+        default:
+            if (c == '\t' || c == '\n' || c == '\r') {
+                // only in attributes, where they would be normalized to spaces
+                writeAscii("&#" + (int) c + ";");
+            } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                writeCodePoint(Character.toCodePoint(c, next));
+            } else if (c < ' ' || isSurrogate(c) || c == '\ufffe' || c == '\uffff') {
+                writeByte('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeUtf8(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else if (isSurrogate(c)) {
+                writeByte('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    /**
+     * Character.isSurrogate() is not available before API level 19.
+     */
+    private static boolean isSurrogate(final char c) {
+        return c >= '\ud800' && c <= '\udfff';
+    }
+
+    private void writeCodePoint(final int codePoint) throws IOException {
+        if (position + 4 > buffer.length) {
+            flushBuffer();
+        }
+        if (codePoint < 0x80) {
+            buffer[position++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[position++] = (byte) (0xc0 | codePoint >> 6);
+            buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+        } else if (codePoint < 0x10000) {
+            buffer[position++] = (byte) (0xe0 | codePoint >> 12);
+            buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+        } else {
+            buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+            buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+            buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+            buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+        }
+    }
+
+    private void writeAscii(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeByte(final int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        if (position + bytes.length > buffer.length) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private static byte[] ascii(final String s) {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}